@@ -0,0 +1,60 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocSchema;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Document encoding CPU of JSON and Smile ("contentType") for every payload. Encoded sizes
+ * (single document and gzip compressed bulk of 1000 documents) are printed when the trial starts,
+ * as they don't depend on the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentFormatBenchmark {
+
+    @Param({"plain", "mdc", "logged", "numeric", "deepStack"})
+    public String payload;
+
+    @Param({"json", "smile"})
+    public String contentType;
+
+    private LogEvent event;
+    private DocumentFormat format;
+    private StackTraceCache stackTraceCache;
+
+    @Setup
+    public void setup() throws IOException {
+        event = Events.create(payload);
+        format = DocumentFormat.parse(contentType);
+        stackTraceCache = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+
+        DocEncoder document = DocEncoder.get(format).encode(event, DocSchema.DEFAULT, stackTraceCache, true, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            for (int i = 0; i < 1000; i++) {
+                gzip.write(document.getBuffer(), 0, document.getLength());
+                gzip.write(format.getSeparator());
+            }
+        }
+        System.out.printf("%n%s %s document: %d bytes, gzip compressed bulk of 1000 documents: %d bytes%n",
+                payload, format, document.getLength(), compressed.size());
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return DocEncoder.get(format).encode(event, DocSchema.DEFAULT, stackTraceCache, true, true).getLength();
+    }
+}
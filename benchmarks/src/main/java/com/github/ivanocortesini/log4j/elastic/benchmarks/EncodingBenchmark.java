@@ -0,0 +1,58 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocUtils;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
+import org.apache.logging.log4j.core.LogEvent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log event to JSON document encoding: reusable thread-local encoder (appender hot path)
+ * and {@link DocUtils#docBuilder} (XContentBuilder copy). Run with "-prof gc" to get
+ * the allocation rate per operation (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    @Param({"plain", "mdc", "logged", "deepStack"})
+    public String payload;
+
+    @Param({"false", "true"})
+    public boolean includeLocation;
+
+    private LogEvent event;
+    private StackTraceCache stackTraceCache;
+    private StackTraceCache disabledStackTraceCache;
+
+    @Setup
+    public void setup() {
+        event = Events.create(payload);
+        stackTraceCache = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+        disabledStackTraceCache = new StackTraceCache(0);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return DocEncoder.get().encode(event, stackTraceCache, includeLocation, true).getLength();
+    }
+
+    //Stack traces encoded every time
+    @Benchmark
+    public int encodeWithoutStackCache() throws IOException {
+        return DocEncoder.get().encode(event, disabledStackTraceCache, includeLocation, true).getLength();
+    }
+
+    @Benchmark
+    public XContentBuilder docBuilder() throws IOException {
+        return DocUtils.docBuilder(event, null, includeLocation, true);
+    }
+}
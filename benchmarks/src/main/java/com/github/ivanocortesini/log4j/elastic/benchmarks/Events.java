@@ -0,0 +1,58 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Realistic log events used by benchmarks.
+ */
+public final class Events {
+    static final int DEEP_STACK_DEPTH = 120;
+
+    private Events() {}
+
+    public static LogEvent create(String payload) {
+        Log4jLogEvent.Builder event = Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.orders.OrderService")
+                .setLevel(Level.INFO)
+                .setTimeMillis(System.currentTimeMillis())
+                .setThreadName("http-nio-8080-exec-1")
+                .setSource(new StackTraceElement("com.example.orders.OrderService", "placeOrder", "OrderService.java", 42))
+                .setMessage(new ParameterizedMessage("Order {} placed by {}", "A-1234", "customer-42"));
+        switch (payload) {
+            case "mdc":
+                SortedArrayStringMap contextData = new SortedArrayStringMap();
+                contextData.putValue("requestId", "6f1c2a3e-4b5d-4e6f-8a9b-0c1d2e3f4a5b");
+                contextData.putValue("userId", "customer-42");
+                contextData.putValue("tenant", "acme");
+                contextData.putValue("session", "s-9d8c7b6a");
+                event.setContextData(contextData);
+                break;
+            case "logged":
+                event.setMessage(new ParameterizedMessage("Order {} placed", "A-1234",
+                        new OrderExample("A-1234", "customer-42", new Date(), Arrays.asList("item-1", "item-2", "item-3"))));
+                break;
+            case "numeric":
+                event.setMessage(new ParameterizedMessage("Request {} completed", "GET /orders",
+                        new MeasurementExample(12_345_678L, 200, 512L, 48_213L, 0.734, new double[] {1.2, 3.4, 8.9, 15.1, 42.7})));
+                break;
+            case "deepStack":
+                event.setLevel(Level.ERROR).setThrown(deepStack(DEEP_STACK_DEPTH));
+                break;
+        }
+        return event.build();
+    }
+
+    //Error with a cause, thrown from "depth" nested frames (like a framework call stack)
+    private static Throwable deepStack(int depth) {
+        if (depth > 0)
+            return deepStack(depth - 1);
+        return new IllegalStateException("Order rejected", new IllegalArgumentException("Unknown item 'item-3'"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.appender.Logged;
+
+/**
+ * Numeric-heavy @Logged parameter: request timing and resource usage figures.
+ */
+@Logged("measurement")
+public class MeasurementExample {
+
+    private final long durationNanos;
+    private final int status;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final double cpuLoad;
+    private final double[] latencyPercentiles;
+
+    public MeasurementExample(long durationNanos, int status, long requestBytes, long responseBytes, double cpuLoad, double[] latencyPercentiles) {
+        this.durationNanos = durationNanos;
+        this.status = status;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.cpuLoad = cpuLoad;
+        this.latencyPercentiles = latencyPercentiles;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+    public int getStatus() {
+        return status;
+    }
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+    public double[] getLatencyPercentiles() {
+        return latencyPercentiles;
+    }
+}
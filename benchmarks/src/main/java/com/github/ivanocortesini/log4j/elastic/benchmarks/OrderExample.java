@@ -0,0 +1,38 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.appender.Logged;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Typical @Logged parameter: a few strings, a date and a list.
+ */
+@Logged("order")
+public class OrderExample {
+
+    private final String id;
+    private final String customer;
+    private final Date creationTime;
+    private final List<String> items;
+
+    public OrderExample(String id, String customer, Date creationTime, List<String> items) {
+        this.id = id;
+        this.customer = customer;
+        this.creationTime = creationTime;
+        this.items = items;
+    }
+
+    public String getId() {
+        return id;
+    }
+    public String getCustomer() {
+        return customer;
+    }
+    public Date getCreationTime() {
+        return creationTime;
+    }
+    public List<String> getItems() {
+        return items;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.client.ElasticClient;
+import com.github.ivanocortesini.log4j.elastic.config.BatchMode;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticHost;
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocSchema;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of synchronous producers: encoding plus {@link ElasticClient#storeDocument} with 1 to 32 threads,
+ * with a single shared bulk buffer ("bufferStripes" 1) and with striped buffers. Throughput per thread count
+ * should grow almost linearly with striped buffers, up to the available cores (run it on a multi-core host).
+ * Bulk requests are large, so transmission to the in-process stub endpoint isn't the bottleneck.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProducerScalingBenchmark {
+
+    @Param({"1", "16"})
+    public int bufferStripes;
+
+    private StubElasticsearch elasticsearch;
+    private ElasticClient client;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        LogEvent event;
+        StackTraceCache stackTraceCache = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+
+        @Setup
+        public void setup() {
+            event = Events.create("plain");
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        elasticsearch = new StubElasticsearch();
+        ElasticConfig config = new ElasticConfig("benchmark-scaling-" + bufferStripes, "benchmark-index",
+                true, 0, null, null, Collections.singletonList(new ElasticHost(elasticsearch.url())));
+        config.setBatchMode(BatchMode.ALWAYS);
+        config.setLingerMs(100);
+        config.setMaxBatchActions(10000);
+        config.setMaxInFlightBulks(4);
+        config.setBufferStripes(bufferStripes);
+        config.setJmx(false);
+        client = ElasticClient.getInstance(config);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.shutdown();
+        elasticsearch.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void store1Thread(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void store2Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void store4Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void store8Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void store16Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void store32Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    private void store(Producer producer) throws IOException {
+        DocEncoder document = DocEncoder.get().encode(producer.event, DocSchema.DEFAULT, producer.stackTraceCache, false, true);
+        client.storeDocument(document.getBuffer(), 0, document.getLength(), false, producer.event.getLevel(), producer.event.getTimeMillis());
+    }
+}
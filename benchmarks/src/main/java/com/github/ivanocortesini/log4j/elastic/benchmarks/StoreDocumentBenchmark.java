@@ -0,0 +1,101 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.github.ivanocortesini.log4j.elastic.client.ElasticClient;
+import com.github.ivanocortesini.log4j.elastic.config.BatchMode;
+import com.github.ivanocortesini.log4j.elastic.config.Compression;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticHost;
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocSchema;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer side of the appender: encoding plus {@link ElasticClient#storeDocument} with 1, 4 and 16
+ * producer threads, JSON and Smile documents, against an in-process stub endpoint (bulk transmission in background, "always"
+ * batch mode). Sample time mode reports latency percentiles; run with "-prof gc" to get
+ * the allocation rate per operation (gc.alloc.rate.norm).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreDocumentBenchmark {
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    @Param({"none", "gzip"})
+    public String compression;
+
+    @Param({"json", "smile"})
+    public String contentType;
+
+    private StubElasticsearch elasticsearch;
+    private ElasticClient client;
+    private DocumentFormat format;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        LogEvent event;
+        StackTraceCache stackTraceCache = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+
+        @Setup
+        public void setup() {
+            event = Events.create("mdc");
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        elasticsearch = new StubElasticsearch();
+        ElasticConfig config = new ElasticConfig("benchmark-" + async + "-" + compression + "-" + contentType, "benchmark-index",
+                true, 0, null, null, Collections.singletonList(new ElasticHost(elasticsearch.url())));
+        config.setBatchMode(BatchMode.ALWAYS);
+        config.setLingerMs(100);
+        config.setMaxInFlightBulks(2);
+        config.setCompression(Compression.parse(compression));
+        config.setContentType(DocumentFormat.parse(contentType));
+        config.setAsync(async);
+        config.setJmx(false);
+        format = config.getContentType();
+        client = ElasticClient.getInstance(config);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.shutdown();
+        elasticsearch.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void store1Thread(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void store4Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void store16Threads(Producer producer) throws IOException {
+        store(producer);
+    }
+
+    private void store(Producer producer) throws IOException {
+        DocEncoder document = DocEncoder.get(format).encode(producer.event, DocSchema.DEFAULT, producer.stackTraceCache, false, true);
+        client.storeDocument(document.getBuffer(), 0, document.getLength(), false, producer.event.getLevel(), producer.event.getTimeMillis());
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.ivanocortesini.log4j.elastic.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process HTTP endpoint answering like an Elasticsearch node that accepts everything:
+ * index checks succeed and bulk requests are read and acknowledged without errors.
+ */
+final class StubElasticsearch implements AutoCloseable {
+    private static final byte[] BULK_RESPONSE = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INDEX_RESPONSE = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final LongAdder bulkRequests = new LongAdder();
+
+    StubElasticsearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 256);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    long bulkRequests() {
+        return bulkRequests.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] buffer = new byte[64 * 1024];
+            while (body.read(buffer) >= 0);
+        }
+        byte[] response = INDEX_RESPONSE;
+        if (exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+            bulkRequests.increment();
+            response = BULK_RESPONSE;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.benchmarks.Events;
+import com.github.ivanocortesini.log4j.elastic.config.Compression;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocSchema;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
+import org.apache.http.HttpEntity;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of bulk request compression against the bytes saved: a bulk request of 1000 documents is streamed
+ * through the shipped {@link GzipEntity} (as the I/O reactor does when sending it) at compression levels 1, 6 and 9.
+ * Documents differ like real ones (timestamps, threads, request ids). Time is per bulk request, uncompressed and
+ * compressed sizes are printed when the trial starts (they don't depend on the measurement).
+ * It's in the client package because bulk buffers and entities are package-private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    private static final int BULK_ACTIONS = 1000;
+
+    @Param({"mdc", "logged", "deepStack"})
+    public String payload;
+
+    @Param({"json", "smile"})
+    public String contentType;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private BulkBuffer bulk;
+
+    @Setup
+    public void setup() throws IOException {
+        DocumentFormat format = DocumentFormat.parse(contentType);
+        LogEvent event = Events.create(payload);
+        StackTraceCache stackTraceCache = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+        byte[] actionLine = ElasticClient.actionLine("index", "benchmark-index", format);
+        Random random = new Random(42);
+        bulk = new BulkBuffer(64 * 1024, format);
+        for (int i = 0; i < BULK_ACTIONS; i++) {
+            Log4jLogEvent.Builder builder = new Log4jLogEvent.Builder(event)
+                    .setTimeMillis(event.getTimeMillis() + i * 5 + random.nextInt(5))
+                    .setThreadName("http-nio-8080-exec-" + random.nextInt(16));
+            if (!event.getContextData().isEmpty()) {
+                SortedArrayStringMap contextData = new SortedArrayStringMap(event.getContextData());
+                contextData.putValue("requestId", new UUID(random.nextLong(), random.nextLong()).toString());
+                builder.setContextData(contextData);
+            }
+            DocEncoder document = DocEncoder.get(format).encode(builder.build(), DocSchema.DEFAULT, stackTraceCache, true, true);
+            bulk.add(actionLine, document.getBuffer(), 0, document.getLength());
+        }
+
+        long compressed = compress();
+        System.out.printf("%n%s %s bulk of %d documents: %d bytes, gzip level %d: %d bytes (%.1f%%)%n",
+                payload, format, BULK_ACTIONS, bulk.size(), level, compressed, 100.0 * compressed / bulk.size());
+    }
+
+    @Benchmark
+    public long gzipBulk() throws IOException {
+        return compress();
+    }
+
+    private long compress() throws IOException {
+        HttpEntity entity = bulk.toEntity(Compression.GZIP, level);
+        CountingOutputStream out = new CountingOutputStream();
+        entity.writeTo(out);
+        return out.count;
+    }
+
+    //Discards the compressed body, counting its bytes
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
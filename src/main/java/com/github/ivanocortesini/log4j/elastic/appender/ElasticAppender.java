@@ -1,9 +1,18 @@
 package com.github.ivanocortesini.log4j.elastic.appender;
 
 import com.github.ivanocortesini.log4j.elastic.client.ElasticClient;
+import com.github.ivanocortesini.log4j.elastic.config.BatchMode;
+import com.github.ivanocortesini.log4j.elastic.config.Compression;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
 import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
-import com.github.ivanocortesini.log4j.elastic.utils.DocUtils;
+import com.github.ivanocortesini.log4j.elastic.utils.DocEncoder;
+import com.github.ivanocortesini.log4j.elastic.utils.DocSchema;
+import com.github.ivanocortesini.log4j.elastic.utils.EventCollapser;
+import com.github.ivanocortesini.log4j.elastic.utils.StackTraceCache;
 import com.github.ivanocortesini.log4j.elastic.config.ElasticHost;
+import com.github.ivanocortesini.log4j.elastic.config.IndexRoute;
+import com.github.ivanocortesini.log4j.elastic.config.OverflowPolicy;
+import com.github.ivanocortesini.log4j.elastic.metrics.AppenderMetrics;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.Filter;
@@ -16,14 +25,17 @@ import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.KeyValuePair;
 import org.apache.logging.log4j.status.StatusLogger;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,21 +45,90 @@ public final class ElasticAppender extends AbstractAppender {
 
     private ElasticClient elasticClient;
     private boolean ignoreExceptions;
+    private StackTraceCache stackTraceCache;
+    private DocSchema schema;
+    private DocumentFormat format;
+    private EventCollapser eventCollapser;
 
     public ElasticAppender(String name, ElasticConfig elasticConfig, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions) throws IOException {
+        this(name, elasticConfig, filter, layout, ignoreExceptions, StackTraceCache.DEFAULT_SIZE);
+    }
+
+    public ElasticAppender(String name, ElasticConfig elasticConfig, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions, int stackCacheSize) throws IOException {
+        this(name, elasticConfig, filter, layout, ignoreExceptions, stackCacheSize, DocSchema.DEFAULT);
+    }
+
+    public ElasticAppender(String name, ElasticConfig elasticConfig, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions, int stackCacheSize, DocSchema schema) throws IOException {
         super(name, filter, layout, ignoreExceptions);
         elasticClient = ElasticClient.getInstance(elasticConfig);
         this.ignoreExceptions = ignoreExceptions;
+        this.schema = schema;
+        format = elasticConfig.getContentType();
+        stackTraceCache = new StackTraceCache(stackCacheSize);
+        if (elasticConfig.getCollapseWindowMs() > 0)
+            eventCollapser = new EventCollapser(name, elasticConfig.getCollapseWindowMs(), elasticConfig.getCollapseMaxKeys(), schema, format, stackTraceCache, ignoreExceptions,
+                    (source, length, event) -> elasticClient.storeDocument(source, 0, length, false, event));
     }
 
     @PluginFactory
     public static ElasticAppender createAppender(@PluginAttribute("name") String name,
                                                  @PluginAttribute(value = "cluster", defaultString = "http://localhost:9200") String cluster,
                                                  @PluginAttribute(value = "index") String indexName,
+                                                 @PluginAttribute(value = "maxConnectionsPerRoute", defaultInt = 10) int maxConnectionsPerRoute,
+                                                 @PluginAttribute(value = "maxConnectionsTotal", defaultInt = 30) int maxConnectionsTotal,
+                                                 @PluginAttribute(value = "ioThreadCount") int ioThreadCount,
+                                                 @PluginAttribute(value = "keepAliveMs", defaultLong = -1) long keepAliveMs,
+                                                 @PluginAttribute(value = "connectTimeoutMs", defaultInt = 1000) int connectTimeoutMs,
+                                                 @PluginAttribute(value = "socketTimeoutMs", defaultInt = 30000) int socketTimeoutMs,
+                                                 @PluginAttribute(value = "nodeSelector", defaultString = "latency") String nodeSelector,
+                                                 @PluginAttribute(value = "sniff") boolean sniff,
+                                                 @PluginAttribute(value = "sniffIntervalMs", defaultInt = 5 * 60 * 1000) int sniffIntervalMs,
+                                                 @PluginAttribute(value = "sniffAfterFailureDelayMs", defaultInt = 60 * 1000) int sniffAfterFailureDelayMs,
+                                                 @PluginAttribute(value = "createIndex", defaultBoolean = true) boolean createIndex,
+                                                 @PluginAttribute(value = "opType", defaultString = "index") String opType,
                                                  @PluginAttribute(value = "flushTimeOut") int flushTimeOut,
+                                                 @PluginAttribute(value = "lingerMs", defaultLong = -1) long lingerMs,
+                                                 @PluginAttribute(value = "maxBatchActions", defaultInt = 1000) int maxBatchActions,
+                                                 @PluginAttribute(value = "maxBatchBytes", defaultLong = 5 * 1024 * 1024) long maxBatchBytes,
+                                                 @PluginAttribute(value = "batchMode", defaultString = "auto") String batchMode,
+                                                 @PluginAttribute(value = "maxInFlightBulks", defaultInt = 1) int maxInFlightBulks,
+                                                 @PluginAttribute(value = "compression", defaultString = "none") String compression,
+                                                 @PluginAttribute(value = "compressionLevel", defaultInt = 6) int compressionLevel,
+                                                 @PluginAttribute(value = "bufferStripes") int bufferStripes,
+                                                 @PluginAttribute(value = "contentType", defaultString = "json") String contentType,
+                                                 @PluginAttribute(value = "maxRetries", defaultInt = 3) int maxRetries,
+                                                 @PluginAttribute(value = "retryBackoffMs", defaultLong = 100) long retryBackoffMs,
+                                                 @PluginAttribute(value = "maxRetryBackoffMs", defaultLong = 10000) long maxRetryBackoffMs,
+                                                 @PluginAttribute(value = "deadLetterIndex") String deadLetterIndex,
+                                                 @PluginAttribute(value = "spoolDirectory") String spoolDirectory,
+                                                 @PluginAttribute(value = "spoolSegmentSize", defaultInt = 64 * 1024 * 1024) int spoolSegmentSize,
+                                                 @PluginAttribute(value = "spoolMaxBytes", defaultLong = 1024L * 1024 * 1024) long spoolMaxBytes,
+                                                 @PluginAttribute(value = "spoolReplayRate", defaultInt = 10) int spoolReplayRate,
+                                                 @PluginAttribute(value = "spoolWaitMs", defaultLong = 100) long spoolWaitMs,
+                                                 @PluginAttribute(value = "jmx", defaultBoolean = true) boolean jmx,
+                                                 @PluginAttribute(value = "collapseWindowMs") long collapseWindowMs,
+                                                 @PluginAttribute(value = "collapseMaxKeys", defaultInt = 1024) int collapseMaxKeys,
                                                  @PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
                                                  @PluginAttribute(value = "username") String username,
                                                  @PluginAttribute(value = "password") String password,
+                                                 @PluginAttribute(value = "stackCacheSize", defaultInt = StackTraceCache.DEFAULT_SIZE) int stackCacheSize,
+                                                 @PluginAttribute(value = "async") boolean async,
+                                                 @PluginAttribute(value = "queueSize", defaultInt = 8192) int queueSize,
+                                                 @PluginAttribute(value = "waitStrategy", defaultString = "Block") String waitStrategy,
+                                                 @PluginAttribute(value = "overflowPolicy", defaultString = "block") String overflowPolicy,
+                                                 @PluginAttribute(value = "shedLowWatermark", defaultInt = 50) int shedLowWatermark,
+                                                 @PluginAttribute(value = "shedHighWatermark", defaultInt = 80) int shedHighWatermark,
+                                                 @PluginAttribute(value = "fields") String fields,
+                                                 @PluginAttribute(value = "excludeFields") String excludeFields,
+                                                 @PluginAttribute(value = "renameFields") String renameFields,
+                                                 @PluginAttribute(value = "mdcKeys") String mdcKeys,
+                                                 @PluginAttribute(value = "useLayout") boolean useLayout,
+                                                 @PluginAttribute(value = "maxMessageBytes", defaultInt = DocSchema.DEFAULT_MAX_MESSAGE_BYTES) int maxMessageBytes,
+                                                 @PluginAttribute(value = "maxFieldBytes", defaultInt = DocSchema.DEFAULT_MAX_FIELD_BYTES) int maxFieldBytes,
+                                                 @PluginAttribute(value = "maxStackFrames", defaultInt = DocSchema.DEFAULT_MAX_STACK_FRAMES) int maxStackFrames,
+                                                 @PluginAttribute(value = "maxDocumentBytes", defaultInt = DocSchema.DEFAULT_MAX_DOCUMENT_BYTES) int maxDocumentBytes,
+                                                 @PluginElement("KeyValuePairs") KeyValuePair[] staticFields,
+                                                 @PluginElement("IndexRoutes") IndexRoute[] indexRoutes,
                                                  @PluginElement("Layout") Layout layout,
                                                  @PluginElement("Filters") Filter filter
                                                  ) {
@@ -60,44 +141,118 @@ public final class ElasticAppender extends AbstractAppender {
             layout = PatternLayout.createDefaultLayout();
 
         try {
-            return new ElasticAppender(
+            ElasticConfig elasticConfig = new ElasticConfig(
                     name,
-                    new ElasticConfig(
-                            name,
-                            indexName==null ? name : indexName,
-                            ignoreExceptions,
-                            flushTimeOut,
-                            username,
-                            password,
-                            Stream.of(cluster.split("[\\s,;]+")).map(host -> {
-                                try {
-                                    return new ElasticHost(host);
-                                } catch (MalformedURLException e) {
-                                    return null;
-                                }
-                            }).filter(Objects::nonNull).collect(Collectors.toList())
-                    ),
-                    filter,
-                    layout,
-                    ignoreExceptions
+                    indexName==null ? name : indexName,
+                    ignoreExceptions,
+                    flushTimeOut,
+                    username,
+                    password,
+                    Stream.of(cluster.split("[\\s,;]+")).map(host -> {
+                        try {
+                            return new ElasticHost(host);
+                        } catch (MalformedURLException e) {
+                            return null;
+                        }
+                    }).filter(Objects::nonNull).collect(Collectors.toList())
             );
+            elasticConfig.setMaxConnectionsPerRoute(Math.max(1, maxConnectionsPerRoute));
+            elasticConfig.setMaxConnectionsTotal(Math.max(1, maxConnectionsTotal));
+            elasticConfig.setIoThreadCount(Math.max(0, ioThreadCount));
+            elasticConfig.setKeepAliveMs(keepAliveMs);
+            elasticConfig.setConnectTimeoutMs(connectTimeoutMs);
+            elasticConfig.setSocketTimeoutMs(socketTimeoutMs);
+            elasticConfig.setLatencyAwareNodeSelector(!"any".equalsIgnoreCase(nodeSelector));
+            elasticConfig.setSniff(sniff);
+            elasticConfig.setSniffIntervalMs(Math.max(1000, sniffIntervalMs));
+            elasticConfig.setSniffAfterFailureDelayMs(Math.max(1000, sniffAfterFailureDelayMs));
+            elasticConfig.setCreateIndex(createIndex);
+            elasticConfig.setOpType("create".equalsIgnoreCase(opType) ? "create" : "index");
+            if (indexRoutes!=null)
+                elasticConfig.setIndexRoutes(Arrays.stream(indexRoutes).filter(Objects::nonNull).collect(Collectors.toList()));
+            elasticConfig.setAsync(async);
+            elasticConfig.setQueueSize(queueSize);
+            elasticConfig.setWaitStrategy(waitStrategy);
+            elasticConfig.setOverflowPolicy(OverflowPolicy.parse(overflowPolicy));
+            elasticConfig.setShedLowWatermark(Math.max(0, Math.min(100, shedLowWatermark)));
+            elasticConfig.setShedHighWatermark(Math.max(elasticConfig.getShedLowWatermark(), Math.min(100, shedHighWatermark)));
+            //"flushTimeOut" (seconds) is still honoured when "lingerMs" isn't specified
+            if (lingerMs >= 0)
+                elasticConfig.setLingerMs(lingerMs);
+            elasticConfig.setMaxBatchActions(Math.max(1, maxBatchActions));
+            elasticConfig.setMaxBatchBytes(Math.max(1, maxBatchBytes));
+            elasticConfig.setBatchMode(BatchMode.parse(batchMode));
+            elasticConfig.setMaxInFlightBulks(Math.max(1, maxInFlightBulks));
+            elasticConfig.setCompression(Compression.parse(compression));
+            elasticConfig.setCompressionLevel(Math.max(0, Math.min(9, compressionLevel)));
+            elasticConfig.setBufferStripes(Math.max(0, bufferStripes));
+            elasticConfig.setContentType(DocumentFormat.parse(contentType));
+            if ("cbor".equalsIgnoreCase(contentType.trim()))
+                LOGGER.warn("Elasticsearch bulk API doesn't support CBOR: appender '{}' uses Smile binary format", name);
+            elasticConfig.setMaxRetries(Math.max(0, maxRetries));
+            elasticConfig.setRetryBackoffMs(Math.max(1, retryBackoffMs));
+            elasticConfig.setMaxRetryBackoffMs(Math.max(retryBackoffMs, maxRetryBackoffMs));
+            elasticConfig.setDeadLetterIndex(deadLetterIndex);
+            elasticConfig.setSpoolDirectory(spoolDirectory);
+            elasticConfig.setSpoolSegmentSize(Math.max(1024 * 1024, spoolSegmentSize));
+            elasticConfig.setSpoolMaxBytes(spoolMaxBytes);
+            elasticConfig.setSpoolReplayRate(Math.max(1, spoolReplayRate));
+            elasticConfig.setSpoolWaitMs(Math.max(0, spoolWaitMs));
+            elasticConfig.setJmx(jmx);
+            elasticConfig.setCollapseWindowMs(Math.max(0, collapseWindowMs));
+            elasticConfig.setCollapseMaxKeys(Math.max(1, collapseMaxKeys));
+
+            //Document fields schema is compiled once
+            DocSchema schema = DocSchema.compile(fields, excludeFields, renameFields,
+                    staticFields!=null ? Arrays.asList(staticFields) : null, mdcKeys, useLayout ? layout : null,
+                    maxMessageBytes, maxFieldBytes, maxStackFrames, maxDocumentBytes);
+
+            return new ElasticAppender(name, elasticConfig, filter, layout, ignoreExceptions, stackCacheSize, schema);
         } catch (IOException e) {
             LOGGER.error("Error initializing Elasticsearch appender named '"+name+"'",e);
             return null;
         }
     }
 
+    public AppenderMetrics getMetrics() {
+        return elasticClient.getMetrics();
+    }
+
     @Override
     public void append(LogEvent logEvent) {
+        AppenderMetrics metrics = elasticClient.getMetrics();
         try {
-            elasticClient.storeXContentDocument(
-                    DocUtils.docBuilder(logEvent, ThreadContext.getContext(), logEvent.isIncludeLocation(), ignoreExceptions),
-                    logEvent.isEndOfBatch());
+            if (eventCollapser!=null && eventCollapser.collapse(logEvent)) {
+                metrics.eventCollapsed();
+                ThreadContext.clearAll();
+                return;
+            }
+            long start = System.nanoTime();
+            DocEncoder document = DocEncoder.get(format).encode(logEvent, schema, stackTraceCache, logEvent.isIncludeLocation(), ignoreExceptions);
+            metrics.encoded(System.nanoTime() - start);
+            elasticClient.storeDocument(document.getBuffer(), 0, document.getLength(), logEvent.isEndOfBatch(), logEvent);
             ThreadContext.clearAll();
         } catch (Throwable e) {
+            metrics.eventsFailed(1);
             LOGGER.error("Error logging into Elasticsearch for logger '"+logEvent.getLoggerName()+"'",e);
             if (!ignoreExceptions)
                 throw new AppenderLoggingException(e);
         }
     }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        if (eventCollapser!=null)
+            eventCollapser.stop();
+        try {
+            elasticClient.shutdown();
+        } catch (IOException e) {
+            LOGGER.error("Error stopping Elasticsearch appender named '"+getName()+"'",e);
+            stopped = false;
+        }
+        setStopped();
+        return stopped;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples log event producers from Elasticsearch round-trips: producers only copy the encoded
+ * document into a bounded Disruptor ring buffer, a single dedicated thread consumes it and
+ * ships documents in bulk, closing a bulk request at the end of every consumed batch.
+ * When the ring buffer is full the configured overflow policy is applied (see {@link LoadShedder}).
+ * The consumer releases every slot as soon as its document is copied into a bulk request, without waiting
+ * for the end of the batch, so producers see free slots while a bulk request is being sent.
+ */
+final class AsyncDispatcher {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    //"dropOldest" policy: maximum time a producer spins for the slot freed by the consumer eviction
+    private static final long DROP_OLDEST_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Disruptor<LogDocument> disruptor;
+    private final RingBuffer<LogDocument> ringBuffer;
+    private final LoadShedder loadShedder;
+
+    AsyncDispatcher(ElasticConfig config, EventHandler<LogDocument> sender) {
+        int capacity = ceilingPowerOfTwo(config.getQueueSize());
+        loadShedder = new LoadShedder(config, capacity);
+        disruptor = new Disruptor<>(
+                LogDocument::new,
+                capacity,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "elastic-appender-" + config.getAppenderName());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                ProducerType.MULTI,
+                createWaitStrategy(config.getWaitStrategy()));
+        disruptor.setDefaultExceptionHandler(new ExceptionHandler<LogDocument>() {
+            @Override
+            public void handleEventException(Throwable ex, long sequence, LogDocument event) {
+                LOGGER.error("Error logging into Elasticsearch from appender '"+config.getAppenderName()+"' asynchronous dispatcher", ex);
+            }
+            @Override
+            public void handleOnStartException(Throwable ex) {
+                LOGGER.error("Error starting Elasticsearch appender '"+config.getAppenderName()+"' asynchronous dispatcher", ex);
+            }
+            @Override
+            public void handleOnShutdownException(Throwable ex) {
+                LOGGER.error("Error stopping Elasticsearch appender '"+config.getAppenderName()+"' asynchronous dispatcher", ex);
+            }
+        });
+        disruptor.handleEventsWith(new SequenceReportingEventHandler<LogDocument>() {
+            private Sequence sequenceCallback;
+            @Override
+            public void setSequenceCallback(Sequence sequenceCallback) {
+                this.sequenceCallback = sequenceCallback;
+            }
+            @Override
+            public void onEvent(LogDocument document, long sequence, boolean endOfBatch) throws Exception {
+                sender.onEvent(document, sequence, endOfBatch);
+                sequenceCallback.set(sequence);
+            }
+        });
+        ringBuffer = disruptor.start();
+    }
+
+    //Claims and fills the next slot directly (no translator arguments boxing).
+    //False if the document is discarded by the overflow policy
+    boolean publish(byte[] source, int offset, int length, boolean endOfBatch, Level level, IndexNameResolver.Bucket index) {
+        long sequence;
+        switch (loadShedder.getPolicy()) {
+            case DROP_NEWEST:
+                try {
+                    sequence = ringBuffer.tryNext();
+                } catch (InsufficientCapacityException e) {
+                    loadShedder.shed(level);
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                sequence = tryNextDroppingOldest();
+                if (sequence < 0) {
+                    loadShedder.shed(level);
+                    return false;
+                }
+                break;
+            case SHED_BY_LEVEL:
+                if (!loadShedder.admit(level, usedSlots())) {
+                    loadShedder.shed(level);
+                    return false;
+                }
+                //Admitted: waits for a free slot like "block" policy
+            default:
+                sequence = ringBuffer.next();
+        }
+        try {
+            ringBuffer.get(sequence).set(source, offset, length, endOfBatch, level, index);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return true;
+    }
+
+    //"dropOldest" policy: producers never wait for the consumer. When the ring buffer is full the consumer is asked
+    //to discard the oldest document and the producer spins briefly for the freed slot. If the consumer doesn't free it
+    //(e.g. it's waiting for a slow bulk request) the request is withdrawn and -1 is returned: the new document is discarded
+    private long tryNextDroppingOldest() {
+        try {
+            return ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            loadShedder.requestDropOldest();
+        }
+        long start = System.nanoTime();
+        do {
+            Thread.yield();
+            try {
+                return ringBuffer.tryNext();
+            } catch (InsufficientCapacityException e) {
+                //Still full
+            }
+        } while (System.nanoTime() - start < DROP_OLDEST_SPIN_NANOS);
+        if (!loadShedder.cancelDropOldest())
+            //Taken by the consumer in the meantime
+            try {
+                return ringBuffer.tryNext();
+            } catch (InsufficientCapacityException e) {
+                //Slot taken by another producer
+            }
+        return -1;
+    }
+
+    long remainingCapacity() {
+        return ringBuffer.remainingCapacity();
+    }
+
+    long usedSlots() {
+        return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+
+    LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    //Waits for already published documents to be consumed before stopping the consumer thread
+    void shutdown(long timeout, TimeUnit unit) {
+        try {
+            disruptor.shutdown(timeout, unit);
+        } catch (TimeoutException e) {
+            LOGGER.warn("Elasticsearch appender asynchronous dispatcher didn't drain its queue in {} {}", timeout, unit);
+            disruptor.halt();
+        }
+    }
+
+
+    //Configuration utils
+    static WaitStrategy createWaitStrategy(String name) {
+        switch (name == null ? "" : name.trim().toUpperCase()) {
+            case "SLEEP":
+                return new SleepingWaitStrategy();
+            case "YIELD":
+                return new YieldingWaitStrategy();
+            case "BUSYSPIN":
+                return new BusySpinWaitStrategy();
+            case "TIMEOUT":
+                return new TimeoutBlockingWaitStrategy(10, TimeUnit.MILLISECONDS);
+            case "BLOCK":
+            case "":
+                return new BlockingWaitStrategy();
+            default:
+                LOGGER.warn("Unknown Elasticsearch appender wait strategy '{}', using 'Block'", name);
+                return new BlockingWaitStrategy();
+        }
+    }
+
+    static int ceilingPowerOfTwo(int size) {
+        int capacity = Math.max(size, 2);
+        return capacity > (1 << 30) ? 1 << 30 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.Compression;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer holding a "_bulk" request body in NDJSON (or Smile) format: every document
+ * is appended after its pre-encoded action line, without intermediate request objects.
+ * Buffers are reused: they are reset and pooled when the bulk request completes.
+ * Item start offsets are tracked, so failed items can be copied into a retry request.
+ */
+final class BulkBuffer {
+    static final ContentType NDJSON = ContentType.create(DocumentFormat.JSON.getBulkMediaType());
+    static final ContentType SMILE = ContentType.create(DocumentFormat.SMILE.getBulkMediaType());
+
+    private final DocumentFormat format;
+    //Items (action and source) end with the format separator
+    private final byte separator;
+    private byte[] bytes;
+    private int size;
+    private int actions;
+    private int[] itemOffsets = new int[64];
+    private int attempt;
+
+    BulkBuffer(int initialCapacity, DocumentFormat format) {
+        bytes = new byte[initialCapacity];
+        this.format = format;
+        separator = format.getSeparator();
+    }
+
+    //Existing body of single line actions (e.g. a spooled request): every item is an action and a source line.
+    //Its format is detected, it can be different from the current one (e.g. spooled before a configuration change)
+    static BulkBuffer wrap(byte[] body) {
+        BulkBuffer bulk = new BulkBuffer(0, DocumentFormat.detect(body, 0, body.length));
+        bulk.bytes = body;
+        bulk.size = body.length;
+        boolean actionLine = true;
+        int lineStart = 0;
+        for (int i = 0; i < body.length; i++)
+            if (body[i] == bulk.separator) {
+                if (actionLine)
+                    bulk.addItemOffset(lineStart);
+                actionLine = !actionLine;
+                lineStart = i + 1;
+            }
+        return bulk;
+    }
+
+    void add(byte[] actionLine, byte[] source, int offset, int length) {
+        ensureCapacity(size + actionLine.length + length + 1);
+        addItemOffset(size);
+        System.arraycopy(actionLine, 0, bytes, size, actionLine.length);
+        size += actionLine.length;
+        System.arraycopy(source, offset, bytes, size, length);
+        size += length;
+        bytes[size++] = separator;
+    }
+
+    //Copy of an item (action and source lines) of another bulk request
+    void addItem(BulkBuffer bulk, int item) {
+        int start = bulk.itemStart(item);
+        int length = bulk.itemEnd(item) - start;
+        ensureCapacity(size + length);
+        addItemOffset(size);
+        System.arraycopy(bulk.bytes, start, bytes, size, length);
+        size += length;
+    }
+
+    int itemStart(int item) {
+        return itemOffsets[item];
+    }
+
+    int itemEnd(int item) {
+        return item + 1 < actions ? itemOffsets[item + 1] : size;
+    }
+
+    //Source line offset of an item (after its action line)
+    int sourceStart(int item) {
+        int position = itemOffsets[item];
+        while (bytes[position] != separator)
+            position++;
+        return position + 1;
+    }
+
+    //The entity wraps the internal buffer: it must not be modified until the request completes
+    HttpEntity toEntity(Compression compression, int compressionLevel) {
+        ContentType contentType = format == DocumentFormat.SMILE ? SMILE : NDJSON;
+        return compression == Compression.GZIP
+                ? new GzipEntity(bytes, 0, size, compressionLevel, contentType)
+                : new ByteArrayEntity(bytes, 0, size, contentType);
+    }
+
+    void reset() {
+        size = 0;
+        actions = 0;
+        attempt = 0;
+    }
+
+    DocumentFormat format() {
+        return format;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    int actions() {
+        return actions;
+    }
+
+    //Number of times this request has already been sent
+    int attempt() {
+        return attempt;
+    }
+
+    void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
+    boolean isEmpty() {
+        return actions == 0;
+    }
+
+    private void addItemOffset(int offset) {
+        if (actions == itemOffsets.length)
+            itemOffsets = Arrays.copyOf(itemOffsets, actions << 1);
+        itemOffsets[actions++] = offset;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length << 1));
+    }
+}
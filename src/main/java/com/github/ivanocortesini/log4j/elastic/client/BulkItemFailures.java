@@ -0,0 +1,124 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Failed items of a "_bulk" response, read by a streaming scan of the response body.
+ * Successful items are skipped without being materialized: a response without errors
+ * is recognized by its "errors" flag, which precedes the items array.
+ * Responses to Smile requests are Smile encoded too.
+ */
+final class BulkItemFailures {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory();
+
+    private final List<int[]> itemsAndStatuses = new ArrayList<>();
+    private final List<String> indices = new ArrayList<>();
+    private final List<String> errorTypes = new ArrayList<>();
+    private final List<String> errorReasons = new ArrayList<>();
+
+    //Null if the response reports no errors
+    static BulkItemFailures parse(byte[] body) throws IOException {
+        JsonFactory factory = DocumentFormat.detect(body, 0, body.length) == DocumentFormat.SMILE ? SMILE_FACTORY : JSON_FACTORY;
+        try (JsonParser parser = factory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return null;
+            BulkItemFailures failures = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("errors".equals(field) && value == JsonToken.VALUE_FALSE)
+                    return null;
+                else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                    failures = new BulkItemFailures();
+                    for (int item = 0; parser.nextToken() == JsonToken.START_OBJECT; item++)
+                        failures.parseItem(parser, item);
+                } else
+                    parser.skipChildren();
+            }
+            return failures!=null && failures.size() > 0 ? failures : null;
+        }
+    }
+
+    //Item format: {"<operation>":{"_index":...,"status":429,"error":{"type":...,"reason":...}}}
+    private void parseItem(JsonParser parser, int item) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            int status = 0;
+            String index = null, type = null, reason = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("status".equals(field))
+                    status = parser.getIntValue();
+                else if ("_index".equals(field))
+                    index = parser.getText();
+                else if ("error".equals(field) && value == JsonToken.START_OBJECT)
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String errorField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("type".equals(errorField))
+                            type = parser.getText();
+                        else if ("reason".equals(errorField))
+                            reason = parser.getText();
+                        else
+                            parser.skipChildren();
+                    }
+                else
+                    parser.skipChildren();
+            }
+            if (status >= 300 || type != null) {
+                itemsAndStatuses.add(new int[] {item, status});
+                indices.add(index);
+                errorTypes.add(type);
+                errorReasons.add(reason);
+            }
+        }
+    }
+
+    int size() {
+        return itemsAndStatuses.size();
+    }
+
+    //Position of the failed item in the bulk request
+    int item(int failure) {
+        return itemsAndStatuses.get(failure)[0];
+    }
+
+    int status(int failure) {
+        return itemsAndStatuses.get(failure)[1];
+    }
+
+    String index(int failure) {
+        return indices.get(failure);
+    }
+
+    String errorType(int failure) {
+        return errorTypes.get(failure);
+    }
+
+    String errorReason(int failure) {
+        return errorReasons.get(failure);
+    }
+
+    //A time-based index can be missing until its asynchronous creation completes
+    boolean isRetryableFailure(int failure) {
+        return isRetryable(status(failure)) || "index_not_found_exception".equals(errorType(failure));
+    }
+
+    //Rejected execution (write thread pool saturation) and unavailable shards can succeed later
+    static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented write-ahead log of bulk request bodies, stored in memory-mapped files.
+ * Bulk bodies are appended as records (length, CRC32, bytes) to the last segment and replayed in order
+ * from the first one: every segment header keeps its read position, so not yet replayed records
+ * survive application restarts. Fully replayed segments are deleted.
+ * Spools opened with {@link #open} are shared by clients with the same directory and name (during a reconfiguration
+ * the new client starts before the old one stops): they're closed by the last client and replayed by one client at a time.
+ */
+final class DiskSpool implements Closeable {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final int MAGIC = 0x45535031;
+    private static final int HEADER_SIZE = 12;
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    //Guarded by itself, like the references of every spool
+    private static final Map<Path, DiskSpool> openSpools = new HashMap<>();
+
+    private final Path directory;
+    private final String name;
+    //Segments of this spool only: "<name>-<20 digits id>.spool" (another appender name can start with this one)
+    private final Pattern segmentName;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final ReentrantLock replayLock = new ReentrantLock();
+    private long nextSegmentId;
+    private int references;
+
+    static DiskSpool open(Path directory, String name, int segmentSize, long maxSize) throws IOException {
+        Path key = directory.toAbsolutePath().normalize().resolve(name);
+        synchronized (openSpools) {
+            DiskSpool spool = openSpools.get(key);
+            if (spool == null)
+                openSpools.put(key, spool = new DiskSpool(directory, name, segmentSize, maxSize));
+            spool.references++;
+            return spool;
+        }
+    }
+
+    DiskSpool(Path directory, String name, int segmentSize, long maxSize) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        segmentName = Pattern.compile(Pattern.quote(name) + "-\\d{20}" + Pattern.quote(SEGMENT_SUFFIX));
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, maxSize / segmentSize);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    //Existing segments are reopened in creation order, with their read position and valid records
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                file -> segmentName.matcher(file.getFileName().toString()).matches())) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            try {
+                long id = segmentId(file);
+                Segment segment = new Segment(file, id, false);
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+                if (segment.isConsumed())
+                    segment.delete();
+                else
+                    segments.addLast(segment);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Error recovering Elasticsearch appender spool segment '" + file + "'", e);
+            }
+        }
+    }
+
+
+    //Write
+    synchronized boolean append(byte[] bytes, int offset, int length) throws IOException {
+        if (RECORD_HEADER_SIZE + length > segmentSize - HEADER_SIZE)
+            return false;
+        Segment last = segments.peekLast();
+        if (last == null || !last.fits(length)) {
+            if (segments.size() >= maxSegments)
+                return false;
+            last = new Segment(directory.resolve(String.format("%s-%020d%s", name, nextSegmentId, SEGMENT_SUFFIX)), nextSegmentId++, true);
+            segments.addLast(last);
+        }
+        crc.reset();
+        crc.update(bytes, offset, length);
+        last.append(bytes, offset, length, (int) crc.getValue());
+        return true;
+    }
+
+
+    //Read: a record is returned until it's committed
+    synchronized byte[] peek() throws IOException {
+        Segment first;
+        while ((first = segments.peekFirst()) != null) {
+            byte[] record = first.peek();
+            if (record != null)
+                return record;
+            if (first == segments.peekLast())
+                return null;
+            //Fully replayed segment: a newer one exists
+            segments.removeFirst().delete();
+        }
+        return null;
+    }
+
+    synchronized void commit() {
+        Segment first = segments.peekFirst();
+        if (first != null)
+            first.commit();
+    }
+
+    //A record is replayed by one client at a time (peek, send, commit): false if another client is replaying
+    boolean tryLockReplay() {
+        return replayLock.tryLock();
+    }
+    void unlockReplay() {
+        replayLock.unlock();
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments)
+            if (!segment.isConsumed())
+                return false;
+        return true;
+    }
+
+    synchronized int segments() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        synchronized (openSpools) {
+            if (--references > 0)
+                return;
+            openSpools.remove(directory.toAbsolutePath().normalize().resolve(name), this);
+        }
+        synchronized (this) {
+            for (Segment segment : segments)
+                segment.force();
+            segments.clear();
+        }
+    }
+
+
+    private static long segmentId(Path file) {
+        String fileName = file.getFileName().toString();
+        return Long.parseLong(fileName.substring(fileName.lastIndexOf('-') + 1, fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+
+    private final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        private int peekedLength = -1;
+
+        Segment(Path path, long id, boolean create) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            if (create) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, segmentSize);
+                buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+                readPosition = writePosition = HEADER_SIZE;
+            } else {
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != segmentSize)
+                    throw new IOException("Invalid or differently sized spool segment " + id);
+                readPosition = buffer.getInt(READ_POSITION_OFFSET);
+                writePosition = readPosition;
+                //Records after the last complete one (e.g. an interrupted write) are discarded
+                int length;
+                while ((length = validRecordLength(writePosition)) >= 0)
+                    writePosition += RECORD_HEADER_SIZE + length;
+            }
+        }
+
+        boolean fits(int length) {
+            return writePosition + RECORD_HEADER_SIZE + length <= segmentSize;
+        }
+
+        void append(byte[] bytes, int offset, int length, int checksum) {
+            //Length is written last: a partially written record is never considered valid
+            buffer.putInt(writePosition + 4, checksum);
+            ByteBuffer record = buffer.duplicate();
+            record.position(writePosition + RECORD_HEADER_SIZE);
+            record.put(bytes, offset, length);
+            buffer.putInt(writePosition, length);
+            writePosition += RECORD_HEADER_SIZE + length;
+        }
+
+        byte[] peek() {
+            if (readPosition >= writePosition)
+                return null;
+            int length = buffer.getInt(readPosition);
+            byte[] record = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(readPosition + RECORD_HEADER_SIZE);
+            source.get(record);
+            peekedLength = length;
+            return record;
+        }
+
+        void commit() {
+            if (peekedLength >= 0) {
+                readPosition += RECORD_HEADER_SIZE + peekedLength;
+                buffer.putInt(READ_POSITION_OFFSET, readPosition);
+                peekedLength = -1;
+            }
+        }
+
+        boolean isConsumed() {
+            return readPosition >= writePosition;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Error deleting Elasticsearch appender spool segment '{}'", path, e);
+            }
+        }
+
+        private int validRecordLength(int position) {
+            if (position + RECORD_HEADER_SIZE > segmentSize)
+                return -1;
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize)
+                return -1;
+            ByteBuffer record = buffer.duplicate();
+            record.limit(position + RECORD_HEADER_SIZE + length);
+            record.position(position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(record);
+            return (int) crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+        }
+    }
+}
@@ -1,167 +1,941 @@
 package com.github.ivanocortesini.log4j.elastic.client;
 
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.ivanocortesini.log4j.elastic.config.BatchMode;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
 import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.impl.client.BasicCredentialsProvider;
+import com.github.ivanocortesini.log4j.elastic.config.IndexRoute;
+import com.github.ivanocortesini.log4j.elastic.metrics.AppenderMetrics;
+import com.github.ivanocortesini.log4j.elastic.metrics.MetricsRegistry;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.status.StatusLogger;
-import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentType;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.client.*;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public final class ElasticClient {
     private static final Logger LOGGER = StatusLogger.getLogger();
 
+    //Clients are reference counted: during a reconfiguration the new appender gets the client of the old one, still running,
+    //if its configuration is unchanged. Otherwise a new client replaces it (the old one stops with the old appender)
     private static final Map<String, ElasticClient> clientByLoggerName = new HashMap<>();
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    //Used when documents are always batched but no linger time is configured
+    private static final long DEFAULT_ALWAYS_BATCH_LINGER_MS = 1000;
+    private static final int INITIAL_BULK_BUFFER_SIZE = 64 * 1024;
+    //Default number of buffer stripes is the number of available processors, up to this limit
+    private static final int MAX_DEFAULT_BUFFER_STRIPES = 16;
+    private static final int MAX_BUFFER_STRIPES = 256;
+    //Bytes held until the startup index check completes are bounded to this number of "maxBatchBytes"
+    private static final int MAX_STARTUP_BULKS = 4;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory();
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
 
     ElasticConfig config;
-    RestHighLevelClient client;
+    RestClient client;
+    //Documents produced by the client (shed summaries, dead letters, converted documents) are encoded in the configured format
+    JsonFactory documentFactory;
+    ContentType documentContentType;
+    LatencyAwareNodeSelector nodeSelector;
 
-    boolean bulkMode;
-    BulkRequest bulkRequest;
-    long bulkRequestCreationTime;
-    ScheduledExecutorService bulkFlushTimeOutCheckerExecutor;
+    IndexNameResolver indexNameResolver;
+    IndexRoute[] indexRoutes;
+    IndexNameResolver[] routeResolvers;
+    final Map<String, CompletableFuture<Void>> indexChecks = new ConcurrentHashMap<>();
+    byte[] deadLetterActionLine;
+
+    volatile boolean bulkMode;
+    //Open bulk requests: every producer thread fills the stripe selected by its id, so threads logging at the same time
+    //don't contend on a single monitor. Closed bulk requests are sent outside stripe monitors
+    BufferStripe[] stripes;
+    int stripeMask;
+    final Queue<BulkBuffer> bulkBufferPool = new ConcurrentLinkedQueue<>();
+    ScheduledThreadPoolExecutor bulkScheduler;
+    Semaphore inFlightBulks;
+    final AtomicLong inFlightBytes = new AtomicLong();
+    //Scheduled or running bulk scheduler tasks that can send a bulk request (retries, startup release, linger flush)
+    final AtomicInteger pendingBulkTasks = new AtomicInteger();
+
+    AsyncDispatcher dispatcher;
+
+    //Bulk requests are held until the destination index check completes
+    volatile boolean ready;
+    final Deque<BulkBuffer> startupBulks = new ArrayDeque<>();
+    //Guarded by startup bulks
+    long startupBytes;
+
+    DiskSpool spool;
+    ScheduledThreadPoolExecutor spoolReplayer;
+    volatile boolean clusterAvailable = true;
+
+    final AppenderMetrics metrics;
+    //Guarded by the clients map
+    int references;
 
 
     //Life cycle and configuration
     public static ElasticClient getInstance(ElasticConfig config) throws IOException {
-        ElasticClient client = clientByLoggerName.get(config.getAppenderName());
-        if (client==null)
-            clientByLoggerName.put(config.getAppenderName(), client = new ElasticClient(config));
-        return client;
+        synchronized (clientByLoggerName) {
+            ElasticClient client = clientByLoggerName.get(config.getAppenderName());
+            if (client==null || !client.config.equals(config))
+                clientByLoggerName.put(config.getAppenderName(), client = new ElasticClient(config));
+            client.references++;
+            return client;
+        }
     }
 
     ElasticClient(ElasticConfig config) throws IOException {
         this.config = config;
-        startup();
+        metrics = new AppenderMetrics(config.getAppenderName());
+        metrics.setBufferGauges(this::bufferedDocuments, this::bufferedBytes);
+        try {
+            startup();
+        } catch (IOException | RuntimeException e) {
+            //Invalid configuration: threads and the REST client already started are released
+            stop();
+            throw e;
+        }
+        MetricsRegistry.register(metrics, config.isJmx());
     }
 
     void startup() throws IOException {
-        try { shutdown(); } catch (Exception e) {}
+        try { stop(); } catch (Exception e) {}
+
+        client = RestClientRegistry.acquire(config);
+        nodeSelector = RestClientRegistry.nodeSelector(client);
+        documentFactory = factory(config.getContentType());
+        documentContentType = ContentType.create(config.getContentType().getMediaType());
+
+        if (config.getDeadLetterIndex()!=null && config.getDeadLetterIndex().trim().length()>0)
+            deadLetterActionLine = actionLine("index", config.getDeadLetterIndex(), config.getContentType());
+        inFlightBulks = new Semaphore(config.getMaxInFlightBulks());
+
+        startBulkScheduler();
+        //The asynchronous dispatcher is the only producer
+        stripes = new BufferStripe[config.isAsync() ? 1 : stripeCount(config.getBufferStripes())];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new BufferStripe();
+        stripeMask = stripes.length - 1;
 
-        HttpHost[] hosts = config.getCluster().stream()
-                .map(node -> new HttpHost(node.getHost(), node.getPort(), node.getProtocol()))
-                .toArray(s -> new HttpHost[s] );
+        //No request is sent here: the appender is available immediately, also when the cluster isn't
+        ready = false;
+        indexChecks.clear();
+        indexNameResolver = new IndexNameResolver(config, this::ensureIndex);
+        List<CompletableFuture<Void>> startupChecks = new ArrayList<>();
+        startupChecks.add(ensureIndex(indexNameResolver.getCurrent().indexName));
+        indexRoutes = config.getIndexRoutes().toArray(new IndexRoute[0]);
+        routeResolvers = new IndexNameResolver[indexRoutes.length];
+        for (int i = 0; i < indexRoutes.length; i++) {
+            routeResolvers[i] = new IndexNameResolver(indexRoutes[i].getIndex(), config, this::ensureIndex);
+            startupChecks.add(ensureIndex(routeResolvers[i].getCurrent().indexName));
+        }
+        CompletableFuture.allOf(startupChecks.toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> completeStartup());
+
+        if (config.getSpoolDirectory()!=null && config.getSpoolDirectory().trim().length()>0)
+            startSpool();
+
+        if (config.isAsync())
+            dispatcher = new AsyncDispatcher(config, this::dispatchDocument);
+    }
+
+    //Bulk action line is the same for every document of an index: it's encoded once
+    static byte[] actionLine(String opType, String indexName, DocumentFormat format) throws IOException {
+        XContentBuilder actionLine = XContentFactory.contentBuilder(format.getXContentType())
+                .startObject()
+                    .startObject(opType)
+                        .field("_index", indexName)
+                        .field("_type", "doc")
+                    .endObject()
+                .endObject();
+        BytesRef encoded = BytesReference.bytes(actionLine).toBytesRef();
+        byte[] line = Arrays.copyOfRange(encoded.bytes, encoded.offset, encoded.offset + encoded.length + 1);
+        line[encoded.length] = format.getSeparator();
+        return line;
+    }
+
+    //Existence cache: every index is checked (and created if missing) once, asynchronously.
+    //The returned check always completes normally: failures are logged and the index is checked again next time
+    private CompletableFuture<Void> ensureIndex(String indexName) {
+        if (!config.isCreateIndex())
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> check = new CompletableFuture<>();
+        CompletableFuture<Void> existingCheck = indexChecks.putIfAbsent(indexName, check);
+        if (existingCheck!=null)
+            return existingCheck;
+        client.performRequestAsync(new Request("HEAD", "/" + indexName), new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                if (response.getStatusLine().getStatusCode() == 404)
+                    createIndex(indexName, check);
+                else
+                    check.complete(null);
+            }
+            @Override
+            public void onFailure(Exception e) {
+                indexChecks.remove(indexName);
+                check.complete(null);
+                LOGGER.error("Error checking Elasticsearch index '" + indexName + "'", e);
+            }
+        });
+        return check;
+    }
+    private void createIndex(String indexName, CompletableFuture<Void> check) {
+        client.performRequestAsync(new Request("PUT", "/" + indexName), new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                check.complete(null);
+            }
+            @Override
+            public void onFailure(Exception e) {
+                check.complete(null);
+                //Index concurrently created by another client
+                if (e instanceof ResponseException && ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == 400
+                        && e.getMessage().contains("resource_already_exists_exception"))
+                    return;
+                indexChecks.remove(indexName);
+                LOGGER.error("Error creating Elasticsearch index '" + indexName + "'", e);
+            }
+        });
+    }
 
-        RestClientBuilder clienBuilder = RestClient.builder(hosts);
-        basicAuthentication(clienBuilder);
+    //Startup buffering: documents and bulk requests produced before the first index check completes are held
+    private void completeStartup() {
+        try {
+            scheduleBulkTask(this::releaseStartupBulks, 0);
+        } catch (RejectedExecutionException e) {
+            //Shutting down: held bulk requests are released by shutdown
+        }
+    }
+    private void releaseStartupBulks() {
+        List<BulkBuffer> heldBulks;
+        synchronized (startupBulks) {
+            ready = true;
+            heldBulks = new ArrayList<>(startupBulks);
+            startupBulks.clear();
+            startupBytes = 0;
+        }
+        heldBulks.forEach(this::sendBulkRequest);
+    }
+    private boolean holdStartupBulk(BulkBuffer bulk) {
+        synchronized (startupBulks) {
+            if (ready)
+                return false;
+            if (startupBytes + bulk.size() <= maxStartupBytes()) {
+                startupBulks.addLast(bulk);
+                startupBytes += bulk.size();
+                return true;
+            }
+        }
+        overflowStartupBulk(bulk);
+        return true;
+    }
+    private boolean holdStartupDocument(IndexNameResolver.Bucket index, byte[] source, int offset, int length) {
+        synchronized (startupBulks) {
+            if (ready)
+                return false;
+            if (startupBytes + index.actionLine.length + length <= maxStartupBytes()) {
+                BulkBuffer bulk = startupBulks.peekLast();
+                if (bulk==null || bulk.actions() >= config.getMaxBatchActions() || bulk.size() >= config.getMaxBatchBytes())
+                    startupBulks.addLast(bulk = takeBulkBuffer());
+                int size = bulk.size();
+                bulk.add(index.actionLine, source, offset, length);
+                startupBytes += bulk.size() - size;
+                return true;
+            }
+        }
+        BulkBuffer bulk = takeBulkBuffer();
+        bulk.add(index.actionLine, source, offset, length);
+        overflowStartupBulk(bulk);
+        return true;
+    }
+    private long maxStartupBytes() {
+        return config.getMaxBatchBytes() > Long.MAX_VALUE / MAX_STARTUP_BULKS ? Long.MAX_VALUE : config.getMaxBatchBytes() * MAX_STARTUP_BULKS;
+    }
+    //Held bytes limit reached while the index check is slow: the bulk request is spooled if possible, otherwise it's lost
+    private void overflowStartupBulk(BulkBuffer bulk) {
+        if (spool!=null)
+            spoolBulkRequest(bulk);
+        else {
+            metrics.eventsFailed(bulk.actions());
+            LOGGER.error("Elasticsearch appender '{}' is waiting for its index check and holds {} bytes already: {} documents lost",
+                    config.getAppenderName(), maxStartupBytes(), bulk.actions());
+        }
+        releaseBulkBuffer(bulk);
+    }
 
-        client = new RestHighLevelClient(clienBuilder);
+    //The client is stopped when the last appender using it shuts it down
+    public void shutdown() throws IOException {
+        boolean replaced;
+        synchronized (clientByLoggerName) {
+            if (--references > 0)
+                return;
+            replaced = !clientByLoggerName.remove(config.getAppenderName(), this);
+        }
+        //The MBean of a replaced client has been replaced by the one of the new client
+        MetricsRegistry.unregister(metrics, !replaced);
+        stop();
+    }
 
-        if (!client.indices().exists(new GetIndexRequest().indices(config.getIndexName()), RequestOptions.DEFAULT))
-            client.indices().create(new CreateIndexRequest(config.getIndexName()), RequestOptions.DEFAULT);
+    public AppenderMetrics getMetrics() {
+        return metrics;
     }
 
-    void basicAuthentication(RestClientBuilder builder) {
-        if (config.getUserName()!=null && config.getUserName().trim().length()>0 && config.getPassword()!=null && config.getPassword().trim().length()>0) {
-            final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("user", "password"));
-            builder.setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider));
+    //Metrics gauges: documents waiting in the asynchronous queue or in open bulk requests,
+    //bytes of open, held (startup index check) and in-flight bulk requests
+    private long bufferedDocuments() {
+        AsyncDispatcher dispatcher = this.dispatcher;
+        long buffered = dispatcher!=null ? dispatcher.usedSlots() : 0;
+        BufferStripe[] stripes = this.stripes;
+        if (stripes!=null)
+            for (BufferStripe stripe : stripes)
+                synchronized (stripe) {
+                    buffered += stripe.bulkBuffer!=null ? stripe.bulkBuffer.actions() : 0;
+                }
+        return buffered;
+    }
+    private long bufferedBytes() {
+        long buffered = inFlightBytes.get();
+        synchronized (startupBulks) {
+            buffered += startupBytes;
         }
+        BufferStripe[] stripes = this.stripes;
+        if (stripes!=null)
+            for (BufferStripe stripe : stripes)
+                synchronized (stripe) {
+                    buffered += stripe.bulkBuffer!=null ? stripe.bulkBuffer.size() : 0;
+                }
+        return buffered;
     }
 
-    void shutdown() throws IOException {
+    private void stop() throws IOException {
         try {
-            if (bulkRequest!=null)
-                sendBulkRequest();
-            stopBulkFlushTimeOutChecker();
+            if (dispatcher!=null) {
+                dispatcher.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                dispatcher = null;
+            }
+            stopSpoolReplayer();
+            releaseStartupBulks();
+            flushBulkRequests();
+            if (inFlightBulks!=null)
+                awaitPendingBulks();
+            stopBulkScheduler();
         } finally {
-            if (client!=null)
-                client.close();
+            if (spool!=null) {
+                spool.close();
+                spool = null;
+            }
+            if (client!=null) {
+                RestClientRegistry.release(client);
+                client = null;
+            }
         }
     }
 
     //Store function implementations
+    //Documents in a different format than the configured one are converted.
+    //Multi-line JSON documents are written again on a single line: line breaks separate bulk items
     public void storeJsonDocument(String document, boolean closeBatch) throws IOException {
-        storeDocument(
-                new IndexRequest(config.getIndexName(), "doc", null).source(document, XContentType.JSON),
-                closeBatch
-        );
+        byte[] source = document.getBytes(StandardCharsets.UTF_8);
+        if (config.getContentType() != DocumentFormat.JSON || hasLineBreaks(source))
+            source = convert(source, 0, source.length, DocumentFormat.JSON);
+        storeDocument(source, 0, source.length, closeBatch);
+    }
+    //JSON strings can't contain raw line breaks: they're whitespace between tokens
+    private static boolean hasLineBreaks(byte[] source) {
+        for (byte b : source)
+            if (b == '\n' || b == '\r')
+                return true;
+        return false;
     }
     public void storeMapDocument(Map<String, Object> document, boolean closeBatch) throws IOException {
-        storeDocument(
-                new IndexRequest(config.getIndexName(), "doc", null).source(document),
-                closeBatch
-        );
+        storeXContentDocument(XContentFactory.contentBuilder(config.getContentType().getXContentType()).map(document), closeBatch);
     }
     public void storeXContentDocument(XContentBuilder document, boolean closeBatch) throws IOException {
-        storeDocument(
-                new IndexRequest(config.getIndexName(), "doc", null).source(document),
-                closeBatch
-        );
-    }
-    synchronized void storeDocument(IndexRequest indexRequest, boolean closeBatch) throws IOException {
-        if (bulkMode || closeBatch) {
-            //Bulk
-            if (bulkRequest == null) {
-                if (!bulkMode) {
-                    bulkMode = true;
-                    if (config.getFlushTimeOut() > 0)
-                        startBulkFlushTimeOutChecker();
-                }
-                bulkRequest = new BulkRequest();
-                bulkRequestCreationTime = System.currentTimeMillis();
+        if (document.contentType() != config.getContentType().getXContentType())
+            try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                    BytesReference.bytes(document), document.contentType())) {
+                parser.nextToken();
+                document = XContentFactory.contentBuilder(config.getContentType().getXContentType()).copyCurrentStructure(parser);
             }
+        BytesRef source = BytesReference.bytes(document).toBytesRef();
+        storeDocument(source.bytes, source.offset, source.length, closeBatch);
+    }
+    //Source bytes must be encoded in the configured format ("contentType"), JSON documents on a single line
+    public void storeDocument(byte[] source, int offset, int length, boolean closeBatch) throws IOException {
+        storeDocument(source, offset, length, closeBatch, null, System.currentTimeMillis());
+    }
+    //Source bytes are copied before returning: the caller can reuse its buffer.
+    //Level is used by the overflow policy: documents without level are never discarded by "shedByLevel" policy.
+    //Timestamp selects the destination index when its name contains a date pattern
+    public void storeDocument(byte[] source, int offset, int length, boolean closeBatch, Level level, long timeMillis) throws IOException {
+        storeDocument(indexNameResolver.resolve(timeMillis), source, offset, length, closeBatch, level);
+    }
+    //Log event document: its destination index is chosen by the index routes.
+    //Documents of every index share the same bulk requests
+    public void storeDocument(byte[] source, int offset, int length, boolean closeBatch, LogEvent event) throws IOException {
+        storeDocument(resolveIndex(event), source, offset, length, closeBatch, event.getLevel());
+    }
+    private void storeDocument(IndexNameResolver.Bucket index, byte[] source, int offset, int length, boolean closeBatch, Level level) throws IOException {
+        if (dispatcher!=null) {
+            //Asynchronous mode: the document will be stored by the dispatcher thread
+            if (!dispatcher.publish(source, offset, length, closeBatch, level, index)) {
+                metrics.eventsDropped(1);
+                return;
+            }
+        } else
+            bufferDocument(index, source, offset, length, closeBatch);
+        metrics.eventAccepted();
+    }
 
-            bulkRequest.add(indexRequest);
+    IndexNameResolver.Bucket resolveIndex(LogEvent event) {
+        for (int i = 0; i < indexRoutes.length; i++)
+            if (indexRoutes[i].matches(event))
+                return routeResolvers[i].resolve(event.getTimeMillis());
+        return indexNameResolver.resolve(event.getTimeMillis());
+    }
 
-            if (closeBatch)
-                sendBulkRequest();
+    //Runs on the dispatcher thread
+    private void dispatchDocument(LogDocument document, long sequence, boolean endOfBatch) throws IOException {
+        LoadShedder loadShedder = dispatcher.getLoadShedder();
+        if (loadShedder.dropOldest()) {
+            loadShedder.shed(document.getLevel());
+            metrics.eventsDropped(1);
+            if (endOfBatch)
+                flushBulkRequests();
         } else
+            bufferDocument(document.getIndex(), document.getBuffer(), 0, document.getLength(), endOfBatch);
+
+        if (endOfBatch && loadShedder.isPressureOver(dispatcher.usedSlots()))
+            storeShedSummary(loadShedder);
+    }
+
+    //Synthetic WARN document reporting the number of documents discarded by level during an overload
+    private void storeShedSummary(LoadShedder loadShedder) throws IOException {
+        long from = loadShedder.getFirstShedMillis();
+        Map<String, Long> shedByLevel = loadShedder.takeSummary();
+        long total = shedByLevel.values().stream().mapToLong(Long::longValue).sum();
+        ByteArrayOutputStream document = new ByteArrayOutputStream(512);
+        try (JsonGenerator generator = documentFactory.createGenerator(document)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("shed");
+            for (Map.Entry<String, Long> entry : shedByLevel.entrySet())
+                generator.writeNumberField(entry.getKey(), entry.getValue());
+            generator.writeEndObject();
+            generator.writeStringField("shedFrom", TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(from)));
+            generator.writeStringField("message", "Elasticsearch appender '" + config.getAppenderName() + "' discarded " + total + " log events because its buffer was full");
+            generator.writeStringField("level", Level.WARN.name());
+            generator.writeStringField("logger", ElasticClient.class.getName());
+            generator.writeStringField("timestamp", TIMESTAMP_FORMAT.format(Instant.now()));
+            generator.writeStringField("thread", Thread.currentThread().getName());
+            generator.writeEndObject();
+        }
+        bufferDocument(indexNameResolver.resolve(System.currentTimeMillis()), document.toByteArray(), 0, document.size(), true);
+    }
+    void bufferDocument(IndexNameResolver.Bucket index, byte[] source, int offset, int length, boolean closeBatch) throws IOException {
+        BulkBuffer closedBulk = null;
+        boolean batched;
+        BufferStripe stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        synchronized (stripe) {
+            batched = bulkMode || closeBatch || config.getBatchMode() == BatchMode.ALWAYS;
+            if (batched) {
+                //Bulk
+                if (stripe.bulkBuffer == null) {
+                    bulkMode = true;
+                    stripe.bulkBuffer = takeBulkBuffer();
+                    stripe.generation++;
+                    scheduleLingerFlush(stripe);
+                }
+
+                stripe.bulkBuffer.add(index.actionLine, source, offset, length);
+
+                //Flush policy (per stripe): end of batch, number of actions or bulk body size
+                if (closeBatch
+                        || stripe.bulkBuffer.actions() >= config.getMaxBatchActions()
+                        || stripe.bulkBuffer.size() >= config.getMaxBatchBytes())
+                    closedBulk = takeBulkRequest(stripe);
+            }
+        }
+
+        if (closedBulk!=null)
+            sendBulkRequest(closedBulk);
+        else if (!batched && (ready || !holdStartupDocument(index, source, offset, length))) {
             //Single
-            client.index(indexRequest, RequestOptions.DEFAULT);
+            Request request = new Request("POST", index.singleDocumentEndpoint);
+            request.setEntity(new ByteArrayEntity(source, offset, length, documentContentType));
+            client.performRequest(request);
+        }
+    }
+
+
+    //Bulk requests are sent asynchronously. Producers wait only if "maxInFlightBulks" requests are already pending.
+    //With a spool, the bulk request is spooled and replayed later if the cluster is unavailable
+    //or if no pending request completes within "spoolWaitMs" (slow cluster).
+    //The permit is taken before checking the cluster: a pending request failed for an outage is spooled first
+    private void sendBulkRequest(BulkBuffer bulk) {
+        if (!ready && holdStartupBulk(bulk))
+            return;
+        if (spool==null)
+            inFlightBulks.acquireUninterruptibly();
+        else {
+            boolean acquired = awaitInFlightBulk();
+            if (!acquired || !clusterAvailable) {
+                spoolBulkRequest(bulk);
+                releaseBulkBuffer(bulk);
+                if (acquired)
+                    inFlightBulks.release();
+                return;
+            }
+        }
+        inFlightBytes.addAndGet(bulk.size());
+        try {
+            Request request = new Request("POST", "/_bulk");
+            request.setEntity(bulk.toEntity(config.getCompression(), config.getCompressionLevel()));
+            long start = System.nanoTime();
+            client.performRequestAsync(request, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    clusterAvailable = true;
+                    long latency = System.nanoTime() - start;
+                    if (nodeSelector!=null)
+                        nodeSelector.recordLatency(response.getHost(), latency);
+                    metrics.bulkSent(bulk.actions(), bulk.size(), latency);
+                    try {
+                        checkBulkResponse(bulk, response);
+                    } catch (Exception e) {
+                        LOGGER.error("Error reading Elasticsearch bulk request response",e);
+                    } finally {
+                        completeBulkRequest(bulk);
+                    }
+                }
+                @Override
+                public void onFailure(Exception e) {
+                    //Node failures are reported by the client, except overloaded nodes
+                    if (nodeSelector!=null && e instanceof ResponseException && ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == 429)
+                        nodeSelector.recordFailure(((ResponseException) e).getResponse().getHost());
+                    if (spool!=null && isClusterUnavailable(e)) {
+                        clusterAvailable = false;
+                        spoolBulkRequest(bulk);
+                    } else if (isClusterUnavailable(e) && bulk.attempt() < config.getMaxRetries()) {
+                        //The whole request is sent again: its buffer is released by the last attempt.
+                        //The retry is scheduled before releasing the permit: shutdown waits for both
+                        metrics.bulkRetried();
+                        inFlightBytes.addAndGet(-bulk.size());
+                        scheduleRetry(bulk);
+                        inFlightBulks.release();
+                        return;
+                    } else {
+                        metrics.eventsFailed(bulk.actions());
+                        LOGGER.error("Error logging into Elasticsearch during a bulk request execution: " + bulk.actions() + " documents lost",e);
+                    }
+                    completeBulkRequest(bulk);
+                }
+            });
+        } catch (RuntimeException e) {
+            completeBulkRequest(bulk);
+            throw e;
+        }
+    }
+
+    private boolean awaitInFlightBulk() {
+        try {
+            return inFlightBulks.tryAcquire(config.getSpoolWaitMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //Connection errors, overloaded or unavailable cluster: the request can succeed later
+    private static boolean isClusterUnavailable(Exception e) {
+        if (!(e instanceof ResponseException))
+            return e instanceof IOException;
+        int status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+        return status == 429 || status >= 500;
+    }
+
+    private void completeBulkRequest(BulkBuffer bulk) {
+        inFlightBytes.addAndGet(-bulk.size());
+        releaseBulkBuffer(bulk);
+        inFlightBulks.release();
+    }
+
+    private void flushBulkRequests() {
+        if (stripes==null)
+            return;
+        for (BufferStripe stripe : stripes) {
+            BulkBuffer bulk;
+            synchronized (stripe) {
+                bulk = stripe.bulkBuffer!=null ? takeBulkRequest(stripe) : null;
+            }
+            if (bulk!=null)
+                sendBulkRequest(bulk);
+        }
+    }
+
+    //Called holding the stripe monitor
+    private BulkBuffer takeBulkRequest(BufferStripe stripe) {
+        if (stripe.lingerFlush!=null) {
+            stripe.lingerFlush.cancel(false);
+            stripe.lingerFlush = null;
+        }
+        BulkBuffer bulk = stripe.bulkBuffer;
+        stripe.bulkBuffer = null;
+        return bulk;
+    }
+
+    //Power of 2 number of stripes: "bufferStripes" if positive, otherwise the number of available processors
+    static int stripeCount(int configured) {
+        int count = configured > 0 ? Math.min(configured, MAX_BUFFER_STRIPES)
+                : Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_BUFFER_STRIPES);
+        int stripes = 1;
+        while (stripes < count)
+            stripes <<= 1;
+        return stripes;
+    }
+
+    //Bulk body buffers are recycled, except oversized ones
+    private BulkBuffer takeBulkBuffer() {
+        BulkBuffer buffer = bulkBufferPool.poll();
+        return buffer!=null ? buffer : new BulkBuffer(INITIAL_BULK_BUFFER_SIZE, config.getContentType());
+    }
+    //Retried items of a spooled request keep its format, also when the configured one has changed since
+    private BulkBuffer takeBulkBuffer(DocumentFormat format) {
+        return format == config.getContentType() ? takeBulkBuffer() : new BulkBuffer(INITIAL_BULK_BUFFER_SIZE, format);
+    }
+    private void releaseBulkBuffer(BulkBuffer buffer) {
+        buffer.reset();
+        if (buffer.capacity() <= 2 * config.getMaxBatchBytes() && buffer.format() == config.getContentType())
+            bulkBufferPool.offer(buffer);
+    }
+
+    //Failed items only are sent again if retryable (with exponential backoff), or stored into the dead letter index
+    private void checkBulkResponse(BulkBuffer bulk, Response response) throws IOException {
+        BulkItemFailures failures = BulkItemFailures.parse(EntityUtils.toByteArray(response.getEntity()));
+        if (failures==null)
+            return;
+
+        BulkBuffer retryBulk = null;
+        BulkBuffer deadLetterBulk = null;
+        int retried = 0, deadLetters = 0, lost = 0;
+        for (int i = 0; i < failures.size(); i++) {
+            int item = failures.item(i);
+            if (item >= bulk.actions())
+                continue;
+            if (failures.isRetryableFailure(i) && bulk.attempt() < config.getMaxRetries()) {
+                if (retryBulk==null) {
+                    retryBulk = takeBulkBuffer(bulk.format());
+                    retryBulk.setAttempt(bulk.attempt());
+                }
+                retryBulk.addItem(bulk, item);
+                retried++;
+            } else if (!failures.isRetryableFailure(i) && deadLetterActionLine!=null && !isDeadLetterBulk(bulk)) {
+                if (deadLetterBulk==null)
+                    deadLetterBulk = takeBulkBuffer();
+                addDeadLetter(deadLetterBulk, bulk, item, failures, i);
+                deadLetters++;
+            } else
+                lost++;
+        }
+
+        metrics.eventsFailed(lost);
+        if (lost > 0)
+            LOGGER.error("Error logging into Elasticsearch during a bulk request execution: {} documents lost, {} retried, {} stored into dead letter index ({}: {})",
+                    lost, retried, deadLetters, failures.errorType(0), failures.errorReason(0));
+        else
+            LOGGER.warn("Elasticsearch bulk request partially failed: {} documents retried, {} stored into dead letter index ({}: {})",
+                    retried, deadLetters, failures.errorType(0), failures.errorReason(0));
+        if (retryBulk!=null) {
+            metrics.bulkRetried();
+            scheduleRetry(retryBulk);
+        }
+        if (deadLetterBulk!=null)
+            scheduleRetry(deadLetterBulk);
+    }
+
+    //Dead letter document: original source as a JSON string (it can't be indexed as is) with the error details
+    private void addDeadLetter(BulkBuffer deadLetterBulk, BulkBuffer bulk, int item, BulkItemFailures failures, int failure) throws IOException {
+        int sourceStart = bulk.sourceStart(item);
+        int sourceEnd = bulk.itemEnd(item) - 1;
+        String source = bulk.format() == DocumentFormat.JSON
+                ? new String(bulk.array(), sourceStart, sourceEnd - sourceStart, StandardCharsets.UTF_8)
+                : toJson(bulk.array(), sourceStart, sourceEnd - sourceStart, bulk.format());
+        ByteArrayOutputStream document = new ByteArrayOutputStream(sourceEnd - sourceStart + 256);
+        try (JsonGenerator generator = documentFactory.createGenerator(document)) {
+            generator.writeStartObject();
+            generator.writeStringField("timestamp", TIMESTAMP_FORMAT.format(Instant.now()));
+            generator.writeStringField("index", failures.index(failure));
+            generator.writeNumberField("status", failures.status(failure));
+            generator.writeStringField("errorType", failures.errorType(failure));
+            generator.writeStringField("errorReason", failures.errorReason(failure));
+            generator.writeStringField("document", source);
+            generator.writeEndObject();
+        }
+        deadLetterBulk.add(deadLetterActionLine, document.toByteArray(), 0, document.size());
+    }
+
+    //Format conversion
+    private static JsonFactory factory(DocumentFormat format) {
+        return format == DocumentFormat.SMILE ? SMILE_FACTORY : JSON_FACTORY;
+    }
+    private byte[] convert(byte[] source, int offset, int length, DocumentFormat sourceFormat) throws IOException {
+        ByteArrayOutputStream converted = new ByteArrayOutputStream(length);
+        try (JsonParser parser = factory(sourceFormat).createParser(source, offset, length);
+             JsonGenerator generator = documentFactory.createGenerator(converted)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return converted.toByteArray();
+    }
+    private static String toJson(byte[] source, int offset, int length, DocumentFormat sourceFormat) throws IOException {
+        StringWriter json = new StringWriter(length * 2);
+        try (JsonParser parser = factory(sourceFormat).createParser(source, offset, length);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return json.toString();
+    }
+
+    private boolean isDeadLetterBulk(BulkBuffer bulk) {
+        int actionLength = deadLetterActionLine.length;
+        if (bulk.actions()==0 || bulk.itemEnd(0) - bulk.itemStart(0) < actionLength)
+            return false;
+        byte[] bytes = bulk.array();
+        for (int i = 0; i < actionLength; i++)
+            if (bytes[bulk.itemStart(0) + i] != deadLetterActionLine[i])
+                return false;
+        return true;
+    }
+
+    //Equal jitter backoff: a random delay between half and the whole exponential backoff time
+    private void scheduleRetry(BulkBuffer bulk) {
+        int attempt = bulk.attempt();
+        bulk.setAttempt(attempt + 1);
+        long backoffMs = Math.min(config.getMaxRetryBackoffMs(), config.getRetryBackoffMs() << Math.min(attempt, 30));
+        long delayMs = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+        try {
+            scheduleBulkTask(() -> sendBulkRequest(bulk), delayMs);
+        } catch (RejectedExecutionException e) {
+            //Shutting down
+            if (spool!=null)
+                spoolBulkRequest(bulk);
+            else {
+                metrics.eventsFailed(bulk.actions());
+                LOGGER.error("Elasticsearch appender '{}' is stopped: {} documents lost", config.getAppenderName(), bulk.actions());
+            }
+            releaseBulkBuffer(bulk);
+        }
+    }
+
+    //Waits until no bulk request is in flight or scheduled: responses can schedule retries (and dead letters) while waiting
+    private void awaitPendingBulks() {
+        int permits = config.getMaxInFlightBulks();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+        try {
+            for (long remaining; (remaining = deadline - System.nanoTime()) > 0; ) {
+                if (pendingBulkTasks.get() > 0) {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                    continue;
+                }
+                if (!inFlightBulks.tryAcquire(permits, remaining, TimeUnit.NANOSECONDS))
+                    break;
+                inFlightBulks.release(permits);
+                if (pendingBulkTasks.get() == 0)
+                    return;
+            }
+            LOGGER.warn("Elasticsearch appender '{}' didn't complete pending bulk requests in {} seconds", config.getAppenderName(), SHUTDOWN_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 
-    private synchronized void sendBulkRequest() throws IOException {
+    //Bulk buffer linger and retry management
+    private void startBulkScheduler() {
+        bulkScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "elastic-appender-bulk-" + config.getAppenderName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        bulkScheduler.setRemoveOnCancelPolicy(true);
+    }
+    //Tasks still scheduled after the shutdown timeout are discarded
+    private void stopBulkScheduler() {
+        if (bulkScheduler!=null && !bulkScheduler.isShutdown()) {
+            int discarded = bulkScheduler.shutdownNow().size();
+            if (discarded > 0)
+                LOGGER.error("Elasticsearch appender '{}' is stopped: {} scheduled bulk requests discarded", config.getAppenderName(), discarded);
+        }
+    }
+    private void scheduleBulkTask(Runnable task, long delayMs) {
+        pendingBulkTasks.incrementAndGet();
         try {
-            client.bulk(bulkRequest, RequestOptions.DEFAULT);
+            bulkScheduler.schedule(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pendingBulkTasks.decrementAndGet();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingBulkTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    //A one-shot flush is scheduled when a bulk request is opened and cancelled when it's sent before
+    private void scheduleLingerFlush(BufferStripe stripe) {
+        long lingerMs = config.getLingerMs() > 0 ? config.getLingerMs() : DEFAULT_ALWAYS_BATCH_LINGER_MS;
+        long generation = stripe.generation;
+        if (config.getLingerMs() > 0 || config.getBatchMode() == BatchMode.ALWAYS)
+            stripe.lingerFlush = bulkScheduler.schedule(() -> lingerFlush(stripe, generation), lingerMs, TimeUnit.MILLISECONDS);
+    }
+    //Runs on the bulk scheduler thread: the stripe monitor is held only to take the expired bulk request.
+    //Bulk buffers are pooled: the expired bulk request is recognized by its generation, since a flush already
+    //running when the bulk request was sent can find the same buffer reopened on the stripe
+    private void lingerFlush(BufferStripe stripe, long generation) {
+        BulkBuffer expiredBulk;
+        pendingBulkTasks.incrementAndGet();
+        try {
+            synchronized (stripe) {
+                if (stripe.bulkBuffer==null || stripe.generation!=generation)
+                    return;
+                expiredBulk = takeBulkRequest(stripe);
+            }
+            sendBulkRequest(expiredBulk);
         } finally {
-            bulkRequest = null;
+            pendingBulkTasks.decrementAndGet();
         }
     }
 
 
-    //Bulk buffer flush timeout management
-    private void startBulkFlushTimeOutChecker() {
-        bulkFlushTimeOutCheckerExecutor = Executors.newSingleThreadScheduledExecutor();
-        bulkFlushTimeOutCheckerExecutor.scheduleAtFixedRate(
-            () -> {
-                //Timeout check based on bulk request creation time. Check is scheduled every 5 seconds
-                if (bulkRequest!=null && config.getFlushTimeOut()<(System.currentTimeMillis()-bulkRequestCreationTime)/1000)
-                    try {
-                        sendBulkRequest();
-                    } catch (IOException e) {
-                        LOGGER.error("Error logging into Elasticsearch during a bulk request execution",e);
-                        if (!config.isIgnoreExceptions())
-                            throw new AppenderLoggingException(e);
-                    }
-            },
-            5,
-            5,
-            TimeUnit.SECONDS);
-    }
-    private void stopBulkFlushTimeOutChecker() {
-        if (bulkFlushTimeOutCheckerExecutor!=null && !bulkFlushTimeOutCheckerExecutor.isShutdown())
-            bulkFlushTimeOutCheckerExecutor.shutdown();
+    //Disk spool management
+    private void startSpool() throws IOException {
+        spool = DiskSpool.open(Paths.get(config.getSpoolDirectory()), config.getAppenderName(),
+                config.getSpoolSegmentSize(), config.getSpoolMaxBytes());
+        spoolReplayer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "elastic-appender-spool-" + config.getAppenderName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long replayDelay = Math.max(1, 1000 / Math.max(1, config.getSpoolReplayRate()));
+        spoolReplayer.scheduleWithFixedDelay(this::replaySpool, replayDelay, replayDelay, TimeUnit.MILLISECONDS);
+    }
+    private void stopSpoolReplayer() {
+        if (spoolReplayer!=null && !spoolReplayer.isShutdown()) {
+            spoolReplayer.shutdown();
+            try {
+                if (!spoolReplayer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    spoolReplayer.shutdownNow();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void spoolBulkRequest(BulkBuffer bulk) {
+        try {
+            if (!spool.append(bulk.array(), 0, bulk.size())) {
+                metrics.eventsFailed(bulk.actions());
+                LOGGER.error("Elasticsearch appender '{}' spool is full: {} documents lost", config.getAppenderName(), bulk.actions());
+            }
+        } catch (Exception e) {
+            metrics.eventsFailed(bulk.actions());
+            LOGGER.error("Error spooling Elasticsearch bulk request: " + bulk.actions() + " documents lost", e);
+        }
+    }
+
+    //Runs on the spool replayer thread: at most one spooled bulk request per period ("spoolReplayRate" per second).
+    //It's also the cluster availability probe while new bulk requests are spooled
+    private void replaySpool() {
+        //Shared spool: another client with the same name is replaying it
+        if (!spool.tryLockReplay())
+            return;
+        try {
+            replaySpooledBulk();
+        } finally {
+            spool.unlockReplay();
+        }
+    }
+    private void replaySpooledBulk() {
+        byte[] body;
+        try {
+            body = spool.peek();
+        } catch (Exception e) {
+            LOGGER.error("Error reading Elasticsearch appender spool", e);
+            return;
+        }
+        if (body==null) {
+            //Nothing to probe with: next bulk request will
+            clusterAvailable = true;
+            return;
+        }
+        Response response;
+        long start = System.nanoTime();
+        try {
+            Request request = new Request("POST", "/_bulk");
+            request.setEntity(BulkBuffer.wrap(body).toEntity(config.getCompression(), config.getCompressionLevel()));
+            response = client.performRequest(request);
+        } catch (Exception e) {
+            if (isClusterUnavailable(e))
+                clusterAvailable = false;
+            else {
+                //Not recoverable: the spooled request is discarded
+                spool.commit();
+                metrics.eventsFailed(BulkBuffer.wrap(body).actions());
+                LOGGER.error("Error logging into Elasticsearch during a spooled bulk request execution", e);
+            }
+            return;
+        }
+        spool.commit();
+        clusterAvailable = true;
+        BulkBuffer bulk = BulkBuffer.wrap(body);
+        metrics.bulkSent(bulk.actions(), body.length, System.nanoTime() - start);
+        try {
+            checkBulkResponse(bulk, response);
+        } catch (Exception e) {
+            LOGGER.error("Error reading Elasticsearch bulk request response", e);
+        }
+    }
+
+    //Open bulk request of the producer threads mapped to a stripe, guarded by the stripe monitor.
+    //The generation is incremented every time a bulk request is opened
+    static final class BufferStripe {
+        BulkBuffer bulkBuffer;
+        long generation;
+        ScheduledFuture<?> lingerFlush;
     }
 }
@@ -0,0 +1,130 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Repeatable HTTP entity compressing a byte array region in gzip format while it's streamed:
+ * the compressed body is produced chunk by chunk and is never held in memory as a whole.
+ */
+final class GzipEntity extends AbstractHttpEntity {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final byte[] source;
+    private final int offset;
+    private final int length;
+    private final int level;
+
+    GzipEntity(byte[] source, int offset, int length, int level, ContentType contentType) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.level = level;
+        setContentType(contentType.toString());
+        setContentEncoding("gzip");
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new GzipInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream content = getContent()) {
+            for (int read; (read = content.read(chunk, 0, chunk.length)) >= 0; )
+                outStream.write(chunk, 0, read);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+
+    //Gzip member: 10 bytes header, raw deflate data, CRC32 and uncompressed size trailer (RFC 1952)
+    private final class GzipInputStream extends InputStream {
+        private final Deflater deflater = new Deflater(level, true);
+        private final byte[] header = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        private final byte[] trailer = new byte[8];
+        private int headerPosition;
+        private int trailerPosition = -1;
+
+        GzipInputStream() {
+            deflater.setInput(source, offset, length);
+            deflater.finish();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) {
+            if (len == 0)
+                return 0;
+            int read = 0;
+            while (read < len) {
+                if (headerPosition < header.length) {
+                    int count = Math.min(header.length - headerPosition, len - read);
+                    System.arraycopy(header, headerPosition, buffer, off + read, count);
+                    headerPosition += count;
+                    read += count;
+                } else if (trailerPosition < 0) {
+                    read += deflater.deflate(buffer, off + read, len - read);
+                    if (deflater.finished())
+                        writeTrailer();
+                } else if (trailerPosition < trailer.length) {
+                    int count = Math.min(trailer.length - trailerPosition, len - read);
+                    System.arraycopy(trailer, trailerPosition, buffer, off + read, count);
+                    trailerPosition += count;
+                    read += count;
+                } else
+                    break;
+            }
+            return read > 0 ? read : -1;
+        }
+
+        private void writeTrailer() {
+            CRC32 crc = new CRC32();
+            crc.update(source, offset, length);
+            writeIntLE((int) crc.getValue(), 0);
+            writeIntLE(length, 4);
+            trailerPosition = 0;
+            deflater.end();
+        }
+
+        private void writeIntLE(int value, int position) {
+            trailer[position] = (byte) value;
+            trailer[position + 1] = (byte) (value >> 8);
+            trailer[position + 2] = (byte) (value >> 16);
+            trailer[position + 3] = (byte) (value >> 24);
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+}
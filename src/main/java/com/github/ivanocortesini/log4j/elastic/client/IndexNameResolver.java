@@ -0,0 +1,139 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.function.Consumer;
+
+/**
+ * Resolves the destination index of a document from its timestamp. Index names can contain
+ * date placeholders, e.g. "app-logs-{yyyy.MM.dd}" (UTC), and the last resolved name is cached
+ * with its time bucket (and pre-encoded bulk action line): a date is formatted only when
+ * a document falls outside the current bucket.
+ */
+final class IndexNameResolver {
+
+    /**
+     * Immutable resolved index: documents with a timestamp in [start, end) go to the same index.
+     */
+    static final class Bucket {
+        final long start;
+        final long end;
+        final String indexName;
+        final byte[] actionLine;
+        final String singleDocumentEndpoint;
+
+        Bucket(long start, long end, String indexName, String opType, DocumentFormat format) throws IOException {
+            this.start = start;
+            this.end = end;
+            this.indexName = indexName;
+            this.actionLine = ElasticClient.actionLine(opType, indexName, format);
+            this.singleDocumentEndpoint = "/" + indexName + "/doc" + ("create".equals(opType) ? "?op_type=create" : "");
+        }
+
+        boolean contains(long timeMillis) {
+            return timeMillis >= start && timeMillis < end;
+        }
+    }
+
+    private final String opType;
+    private final DocumentFormat format;
+    private final DateTimeFormatter formatter;
+    private final ChronoUnit bucketUnit;
+    private final Consumer<String> newIndexListener;
+    private volatile Bucket current;
+
+    //The listener is notified (on the resolving thread) when a bucket is created for a different index
+    IndexNameResolver(ElasticConfig config, Consumer<String> newIndexListener) throws IOException {
+        this(config.getIndexName(), config, newIndexListener);
+    }
+
+    IndexNameResolver(String indexName, ElasticConfig config, Consumer<String> newIndexListener) throws IOException {
+        this.opType = config.getOpType();
+        this.format = config.getContentType();
+        this.newIndexListener = newIndexListener;
+        StringBuilder pattern = new StringBuilder();
+        ChronoUnit unit = null;
+        for (int i = 0; i < indexName.length(); ) {
+            int open = indexName.indexOf('{', i);
+            int close = open < 0 ? -1 : indexName.indexOf('}', open);
+            if (close < 0) {
+                appendLiteral(pattern, indexName.substring(i));
+                break;
+            }
+            appendLiteral(pattern, indexName.substring(i, open));
+            String datePattern = indexName.substring(open + 1, close);
+            pattern.append(datePattern);
+            unit = finest(unit, bucketUnit(datePattern));
+            i = close + 1;
+        }
+        bucketUnit = unit;
+        //Invalid date patterns are configuration errors, reported like the other ones
+        try {
+            formatter = unit!=null ? DateTimeFormatter.ofPattern(pattern.toString()).withZone(ZoneOffset.UTC) : null;
+            current = unit!=null ? resolveBucket(System.currentTimeMillis()) : new Bucket(Long.MIN_VALUE, Long.MAX_VALUE, indexName, opType, format);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            throw new IOException("Invalid date pattern in index name '" + indexName + "': " + e.getMessage(), e);
+        }
+        newIndexListener.accept(current.indexName);
+    }
+
+    Bucket resolve(long timeMillis) {
+        Bucket bucket = current;
+        if (bucket.contains(timeMillis))
+            return bucket;
+        try {
+            Bucket resolved = resolveBucket(timeMillis);
+            if (!resolved.indexName.equals(bucket.indexName))
+                newIndexListener.accept(resolved.indexName);
+            return current = resolved;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Bucket getCurrent() {
+        return current;
+    }
+
+    private Bucket resolveBucket(long timeMillis) throws IOException {
+        Instant start = Instant.ofEpochMilli(timeMillis).truncatedTo(bucketUnit);
+        return new Bucket(start.toEpochMilli(), start.plus(1, bucketUnit).toEpochMilli(), formatter.format(start), opType, format);
+    }
+
+
+    //Pattern utils
+    private static void appendLiteral(StringBuilder pattern, String literal) {
+        if (!literal.isEmpty())
+            pattern.append('\'').append(literal.replace("'", "''")).append('\'');
+    }
+
+    //Buckets never span more than a day: week, month and year boundaries are always day boundaries
+    private static ChronoUnit bucketUnit(String datePattern) {
+        ChronoUnit unit = ChronoUnit.DAYS;
+        for (char letter : datePattern.toCharArray())
+            switch (letter) {
+                case 'H': case 'h': case 'k': case 'K': case 'a':
+                    unit = finest(unit, ChronoUnit.HOURS);
+                    break;
+                case 'm':
+                    unit = finest(unit, ChronoUnit.MINUTES);
+                    break;
+                case 's':
+                    unit = finest(unit, ChronoUnit.SECONDS);
+                    break;
+            }
+        return unit;
+    }
+
+    private static ChronoUnit finest(ChronoUnit unit, ChronoUnit other) {
+        return unit==null || other.compareTo(unit) < 0 ? other : unit;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Steers requests away from slow or failing nodes. Every node has a score: the exponentially weighted
+ * moving average (EWMA) of its observed request latency, increased by the EWMA of its recent failures.
+ * Nodes scoring more than {@link #SLOW_NODE_FACTOR} times the best one are skipped, as dedicated
+ * master nodes when other nodes are available. Nodes without recent samples are always selectable
+ * and don't take part in the best score, so a recovered or new node gets traffic (and a new score)
+ * without excluding the measured ones. The REST client round-robins among
+ * selected nodes.
+ */
+final class LatencyAwareNodeSelector implements NodeSelector {
+    static final double SLOW_NODE_FACTOR = 2;
+    private static final double ALPHA = 0.3;
+    private static final double FAILURE_PENALTY = 4;
+    private static final long STALE_SAMPLE_NANOS = 5_000_000_000L;
+    private static final double UNSAMPLED = -1;
+
+    private final Map<HttpHost, NodeStats> statsByHost = new ConcurrentHashMap<>();
+
+    //Lock-free EWMA updates: values are stored as double bits
+    private static final class NodeStats {
+        final AtomicLong latencyNanos = new AtomicLong(Double.doubleToLongBits(-1));
+        final AtomicLong failures = new AtomicLong(Double.doubleToLongBits(0));
+        volatile long lastSampleNanos;
+
+        double score(long now) {
+            if (now - lastSampleNanos > STALE_SAMPLE_NANOS)
+                return UNSAMPLED;
+            double latency = Double.longBitsToDouble(latencyNanos.get());
+            double failureRate = Double.longBitsToDouble(failures.get());
+            if (latency < 0)
+                //Failed before any successful request
+                return failureRate > 0 ? Double.POSITIVE_INFINITY : UNSAMPLED;
+            return latency * (1 + FAILURE_PENALTY * failureRate);
+        }
+    }
+
+    void recordLatency(HttpHost host, long nanos) {
+        NodeStats stats = stats(host);
+        update(stats.latencyNanos, nanos);
+        update(stats.failures, 0);
+        stats.lastSampleNanos = System.nanoTime();
+    }
+
+    void recordFailure(HttpHost host) {
+        NodeStats stats = stats(host);
+        update(stats.failures, 1);
+        stats.lastSampleNanos = System.nanoTime();
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        long now = System.nanoTime();
+        double bestScore = Double.MAX_VALUE;
+        boolean dataNodes = false;
+        for (Node node : nodes) {
+            if (isDedicatedMaster(node))
+                continue;
+            dataNodes = true;
+            double score = score(node, now);
+            if (score != UNSAMPLED)
+                bestScore = Math.min(bestScore, score);
+        }
+        if (!dataNodes)
+            return;
+        double threshold = bestScore * SLOW_NODE_FACTOR;
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            Node node = iterator.next();
+            if (isDedicatedMaster(node))
+                iterator.remove();
+            else {
+                double score = score(node, now);
+                if (score != UNSAMPLED && score > threshold)
+                    iterator.remove();
+            }
+        }
+    }
+
+    private double score(Node node, long now) {
+        NodeStats stats = statsByHost.get(node.getHost());
+        return stats!=null ? stats.score(now) : UNSAMPLED;
+    }
+
+    private NodeStats stats(HttpHost host) {
+        return statsByHost.computeIfAbsent(host, h -> new NodeStats());
+    }
+
+    private static boolean isDedicatedMaster(Node node) {
+        Node.Roles roles = node.getRoles();
+        return roles!=null && roles.isMasterEligible() && !roles.isData() && !roles.isIngest();
+    }
+
+    private static void update(AtomicLong average, double sample) {
+        long current;
+        double value;
+        do {
+            current = average.get();
+            value = Double.longBitsToDouble(current);
+            value = value < 0 ? sample : value + ALPHA * (sample - value);
+        } while (!average.compareAndSet(current, Double.doubleToLongBits(value)));
+    }
+
+    @Override
+    public String toString() {
+        return "LATENCY_AWARE";
+    }
+}
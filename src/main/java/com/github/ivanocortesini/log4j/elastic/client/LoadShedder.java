@@ -0,0 +1,92 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.OverflowPolicy;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Overflow policy of the asynchronous dispatcher ring buffer. Watermarks are expressed as used slots:
+ * with "shedByLevel" policy TRACE and DEBUG documents are discarded above the low watermark,
+ * INFO documents above the high one. Discarded documents are counted by level until the pressure
+ * ends (used slots below the low watermark), then the counts are taken for a summary document.
+ */
+final class LoadShedder {
+    private static final StandardLevel[] LEVELS = StandardLevel.values();
+
+    private final OverflowPolicy policy;
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final LongAdder[] shedByLevel = new LongAdder[LEVELS.length];
+    private final LongAdder shed = new LongAdder();
+    private final AtomicLong oldestToDrop = new AtomicLong();
+    private volatile long firstShedMillis;
+
+    LoadShedder(ElasticConfig config, long capacity) {
+        policy = config.getOverflowPolicy();
+        lowWatermark = capacity * config.getShedLowWatermark() / 100;
+        highWatermark = capacity * config.getShedHighWatermark() / 100;
+        for (int i = 0; i < shedByLevel.length; i++)
+            shedByLevel[i] = new LongAdder();
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    //Producer side ("shedByLevel" policy): false if the document must be discarded
+    boolean admit(Level level, long usedSlots) {
+        if (level==null || level.isMoreSpecificThan(Level.WARN))
+            return true;
+        long watermark = level.isMoreSpecificThan(Level.INFO) ? highWatermark : lowWatermark;
+        return usedSlots < watermark;
+    }
+
+    void shed(Level level) {
+        if (shed.sum() == 0)
+            firstShedMillis = System.currentTimeMillis();
+        shed.increment();
+        shedByLevel[(level==null ? StandardLevel.OFF : level.getStandardLevel()).ordinal()].increment();
+    }
+
+    //"dropOldest" policy: the producer asks the consumer to discard the next consumed document,
+    //and withdraws the request if the consumer doesn't take it in time (false if already taken)
+    void requestDropOldest() {
+        oldestToDrop.incrementAndGet();
+    }
+    boolean cancelDropOldest() {
+        return dropOldest();
+    }
+    boolean dropOldest() {
+        long requests;
+        while ((requests = oldestToDrop.get()) > 0)
+            if (oldestToDrop.compareAndSet(requests, requests - 1))
+                return true;
+        return false;
+    }
+
+    boolean isPressureOver(long usedSlots) {
+        return usedSlots < Math.max(lowWatermark, 1) && shed.sum() > 0;
+    }
+
+    long getFirstShedMillis() {
+        return firstShedMillis;
+    }
+
+    //Discarded documents count by level name (then counters are reset)
+    Map<String, Long> takeSummary() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (int i = 0; i < shedByLevel.length; i++) {
+            long count = shedByLevel[i].sumThenReset();
+            if (count > 0)
+                summary.put(LEVELS[i].name(), count);
+        }
+        shed.reset();
+        return summary;
+    }
+}
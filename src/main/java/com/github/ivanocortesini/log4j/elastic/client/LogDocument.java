@@ -0,0 +1,46 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Ring buffer slot holding an already encoded log document. Slots are preallocated
+ * and reused, so the internal buffer only grows when a bigger document shows up.
+ */
+final class LogDocument {
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    private boolean endOfBatch;
+    private Level level;
+    private IndexNameResolver.Bucket index;
+
+    void set(byte[] source, int offset, int length, boolean endOfBatch, Level level, IndexNameResolver.Bucket index) {
+        if (buffer.length < length)
+            buffer = new byte[Math.max(length, buffer.length << 1)];
+        System.arraycopy(source, offset, buffer, 0, length);
+        this.length = length;
+        this.endOfBatch = endOfBatch;
+        this.level = level;
+        this.index = index;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    boolean isEndOfBatch() {
+        return endOfBatch;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    IndexNameResolver.Bucket getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Low-level REST clients shared by appenders targeting the same cluster with the same credentials:
+ * they share I/O reactor threads, connection pool, node selector statistics and sniffer. Clients are
+ * reference counted and closed when the last appender releases them. HTTP settings of the first
+ * appender creating a client apply.
+ */
+final class RestClientRegistry {
+
+    private static final class SharedClient {
+        List<Object> key;
+        RestClient client;
+        LatencyAwareNodeSelector nodeSelector;
+        Sniffer sniffer;
+        int references;
+    }
+
+    private static final Map<List<Object>, SharedClient> clientByKey = new HashMap<>();
+    private static final Map<RestClient, SharedClient> sharedClients = new IdentityHashMap<>();
+
+    private RestClientRegistry() {}
+
+    static synchronized RestClient acquire(ElasticConfig config) {
+        List<Object> key = Arrays.asList(config.getCluster().toString(), config.getUserName(), config.getPassword());
+        SharedClient shared = clientByKey.get(key);
+        if (shared==null) {
+            clientByKey.put(key, shared = createClient(config));
+            shared.key = key;
+            sharedClients.put(shared.client, shared);
+        }
+        shared.references++;
+        return shared.client;
+    }
+
+    static synchronized void release(RestClient client) throws IOException {
+        SharedClient shared = sharedClients.get(client);
+        if (shared==null || --shared.references > 0)
+            return;
+        sharedClients.remove(client);
+        clientByKey.remove(shared.key);
+        if (shared.sniffer!=null)
+            shared.sniffer.close();
+        client.close();
+    }
+
+    //Null if the client uses the default node selector
+    static synchronized LatencyAwareNodeSelector nodeSelector(RestClient client) {
+        SharedClient shared = sharedClients.get(client);
+        return shared!=null ? shared.nodeSelector : null;
+    }
+
+    static synchronized int size() {
+        return clientByKey.size();
+    }
+
+
+    //Client configuration
+    private static SharedClient createClient(ElasticConfig config) {
+        SharedClient shared = new SharedClient();
+        HttpHost[] hosts = config.getCluster().stream()
+                .map(node -> new HttpHost(node.getHost(), node.getPort(), node.getProtocol()))
+                .toArray(HttpHost[]::new);
+
+        RestClientBuilder builder = RestClient.builder(hosts);
+
+        //Node selection: failures are reported by the client, latencies by bulk requests
+        if (config.isLatencyAwareNodeSelector()) {
+            shared.nodeSelector = new LatencyAwareNodeSelector();
+            builder.setNodeSelector(shared.nodeSelector);
+        }
+        SniffOnFailureListener sniffOnFailure = config.isSniff() ? new SniffOnFailureListener() : null;
+        builder.setFailureListener(new RestClient.FailureListener() {
+            @Override
+            public void onFailure(Node node) {
+                if (shared.nodeSelector!=null)
+                    shared.nodeSelector.recordFailure(node.getHost());
+                if (sniffOnFailure!=null)
+                    sniffOnFailure.onFailure(node);
+            }
+        });
+
+        CredentialsProvider credentialsProvider = basicAuthentication(config);
+        builder.setHttpClientConfigCallback(httpClientBuilder -> {
+            if (credentialsProvider!=null)
+                httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+            httpClientBuilder.setMaxConnPerRoute(config.getMaxConnectionsPerRoute());
+            httpClientBuilder.setMaxConnTotal(config.getMaxConnectionsTotal());
+            if (config.getIoThreadCount() > 0)
+                httpClientBuilder.setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(config.getIoThreadCount()).build());
+            if (config.getKeepAliveMs() >= 0)
+                httpClientBuilder.setKeepAliveStrategy((response, context) -> config.getKeepAliveMs());
+            return httpClientBuilder;
+        });
+        builder.setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                .setConnectTimeout(config.getConnectTimeoutMs())
+                .setSocketTimeout(config.getSocketTimeoutMs()));
+        shared.client = builder.build();
+
+        //Sniffing: cluster nodes are discovered periodically and after a node failure
+        if (sniffOnFailure!=null) {
+            ElasticsearchNodesSniffer.Scheme scheme = hosts.length > 0 && "https".equalsIgnoreCase(hosts[0].getSchemeName())
+                    ? ElasticsearchNodesSniffer.Scheme.HTTPS : ElasticsearchNodesSniffer.Scheme.HTTP;
+            shared.sniffer = Sniffer.builder(shared.client)
+                    .setSniffIntervalMillis(config.getSniffIntervalMs())
+                    .setSniffAfterFailureDelayMillis(config.getSniffAfterFailureDelayMs())
+                    .setNodesSniffer(new ElasticsearchNodesSniffer(shared.client, ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT, scheme))
+                    .build();
+            sniffOnFailure.setSniffer(shared.sniffer);
+        }
+        return shared;
+    }
+
+    private static CredentialsProvider basicAuthentication(ElasticConfig config) {
+        if (config.getUserName()!=null && config.getUserName().trim().length()>0 && config.getPassword()!=null && config.getPassword().trim().length()>0) {
+            final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(config.getUserName(), config.getPassword()));
+            return credentialsProvider;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.ivanocortesini.log4j.elastic.config;
+
+public enum BatchMode {
+    //Bulk mode starts when the logger closes a batch for the first time (asynchronous loggers)
+    AUTO,
+    //Every document is buffered and bulk requests are sent by a background thread (synchronous loggers too)
+    ALWAYS;
+
+    public static BatchMode parse(String value) {
+        return value!=null && value.trim().equalsIgnoreCase(ALWAYS.name()) ? ALWAYS : AUTO;
+    }
+}
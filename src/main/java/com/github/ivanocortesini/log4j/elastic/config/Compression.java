@@ -0,0 +1,11 @@
+package com.github.ivanocortesini.log4j.elastic.config;
+
+public enum Compression {
+    NONE,
+    //Bulk request bodies are sent with "Content-Encoding: gzip"
+    GZIP;
+
+    public static Compression parse(String value) {
+        return value!=null && value.trim().equalsIgnoreCase(GZIP.name()) ? GZIP : NONE;
+    }
+}
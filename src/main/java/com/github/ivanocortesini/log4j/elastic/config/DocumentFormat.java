@@ -0,0 +1,50 @@
+package com.github.ivanocortesini.log4j.elastic.config;
+
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Encoding of documents and bulk request bodies ("contentType" attribute).
+ */
+public enum DocumentFormat {
+    //Bulk items are new line separated (NDJSON)
+    JSON(XContentType.JSON, (byte) '\n', "application/x-ndjson"),
+    //Binary JSON: every document and action line is a Smile stream (with header), bulk items are separated by 0xFF (never found in Smile content)
+    SMILE(XContentType.SMILE, (byte) 0xFF, "application/smile");
+
+    private final XContentType xContentType;
+    private final byte separator;
+    private final String bulkMediaType;
+
+    DocumentFormat(XContentType xContentType, byte separator, String bulkMediaType) {
+        this.xContentType = xContentType;
+        this.separator = separator;
+        this.bulkMediaType = bulkMediaType;
+    }
+
+    public XContentType getXContentType() {
+        return xContentType;
+    }
+
+    public byte getSeparator() {
+        return separator;
+    }
+
+    public String getMediaType() {
+        return xContentType.mediaTypeWithoutParameters();
+    }
+
+    public String getBulkMediaType() {
+        return bulkMediaType;
+    }
+
+    //CBOR is binary too, but Elasticsearch "_bulk" API doesn't support it (no stream separator): Smile is used instead
+    public static DocumentFormat parse(String value) {
+        String format = value!=null ? value.trim() : "";
+        return format.equalsIgnoreCase(SMILE.name()) || format.equalsIgnoreCase("cbor") ? SMILE : JSON;
+    }
+
+    //Format of an encoded document or bulk body: Smile content starts with the ":)\n" header
+    public static DocumentFormat detect(byte[] content, int offset, int length) {
+        return length >= 3 && content[offset] == ':' && content[offset + 1] == ')' && content[offset + 2] == '\n' ? SMILE : JSON;
+    }
+}
@@ -1,6 +1,5 @@
 package com.github.ivanocortesini.log4j.elastic.config;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
@@ -9,7 +8,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 
-@Data @NoArgsConstructor @AllArgsConstructor @EqualsAndHashCode
+@Data @NoArgsConstructor @EqualsAndHashCode
 public class ElasticConfig {
 
     private String appenderName;
@@ -20,4 +19,78 @@ public class ElasticConfig {
     private String password;
     private List<ElasticHost> cluster = new LinkedList<>();
 
+    //HTTP client settings (the client is shared by appenders with the same cluster and credentials)
+    private int maxConnectionsPerRoute = 10;
+    private int maxConnectionsTotal = 30;
+    private int ioThreadCount;
+    private long keepAliveMs = -1;
+    private int connectTimeoutMs = 1000;
+    private int socketTimeoutMs = 30000;
+    //Node selection and discovery
+    private boolean latencyAwareNodeSelector = true;
+    private boolean sniff;
+    private int sniffIntervalMs = 5 * 60 * 1000;
+    private int sniffAfterFailureDelayMs = 60 * 1000;
+
+    //Index name can contain date patterns (e.g. "app-logs-{yyyy.MM.dd}"), missing indices are created
+    private boolean createIndex = true;
+    private String opType = "index";
+    //Per event destination index: the first matching route wins (appender index if none)
+    private List<IndexRoute> indexRoutes = new LinkedList<>();
+
+    //Asynchronous dispatch (ring buffer between appender and bulk sender)
+    private boolean async;
+    private int queueSize = 8192;
+    private String waitStrategy = "Block";
+    //Overflow policy of the ring buffer, watermarks are percentages of its capacity
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private int shedLowWatermark = 50;
+    private int shedHighWatermark = 80;
+
+    //Bulk flush policy: a bulk request is sent as soon as any threshold is reached
+    private int maxBatchActions = 1000;
+    private long maxBatchBytes = 5 * 1024 * 1024;
+    private long lingerMs;
+    private BatchMode batchMode = BatchMode.AUTO;
+    private int maxInFlightBulks = 1;
+    private Compression compression = Compression.NONE;
+    private int compressionLevel = 6;
+    //Open bulk requests filled by synchronous producers (0 means the number of available processors)
+    private int bufferStripes;
+
+    //Bulk failures: retryable items are sent again with exponential backoff, the others go to the dead letter index
+    private int maxRetries = 3;
+    private long retryBackoffMs = 100;
+    private long maxRetryBackoffMs = 10000;
+    private String deadLetterIndex;
+
+    //Disk spool of bulk requests not sent while the cluster is unreachable or slow (disabled without directory)
+    private String spoolDirectory;
+    private int spoolSegmentSize = 64 * 1024 * 1024;
+    private long spoolMaxBytes = 1024L * 1024 * 1024;
+    private int spoolReplayRate = 10;
+    //Maximum time a producer waits for a pending bulk request to complete before spooling (slow cluster)
+    private long spoolWaitMs = 100;
+
+    //Encoding of documents and bulk request bodies
+    private DocumentFormat contentType = DocumentFormat.JSON;
+
+    //Metrics MBean registration
+    private boolean jmx = true;
+
+    //Burst collapsing of repeated events (disabled if the window is 0)
+    private long collapseWindowMs;
+    private int collapseMaxKeys = 1024;
+
+    public ElasticConfig(String appenderName, String indexName, boolean ignoreExceptions, int flushTimeOut, String userName, String password, List<ElasticHost> cluster) {
+        this.appenderName = appenderName;
+        this.indexName = indexName;
+        this.ignoreExceptions = ignoreExceptions;
+        this.flushTimeOut = flushTimeOut;
+        this.lingerMs = flushTimeOut * 1000L;
+        this.userName = userName;
+        this.password = password;
+        this.cluster = cluster;
+    }
+
 }
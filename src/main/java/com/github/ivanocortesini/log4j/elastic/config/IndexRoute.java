@@ -0,0 +1,122 @@
+package com.github.ivanocortesini.log4j.elastic.config;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.Arrays;
+
+/**
+ * Routing rule of log events to a destination index ("IndexRoute" element of the appender).
+ * All the specified conditions must match: logger name prefixes, levels, marker and MDC key (with optional value).
+ * Routes are evaluated in configuration order and the first matching one wins: events matching no route go to the appender index.
+ */
+@Getter @EqualsAndHashCode
+@Plugin(name = "IndexRoute", category = Node.CATEGORY, printObject = true)
+public final class IndexRoute {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final String index;
+    private final String[] loggerPrefixes;
+    private final Level[] levels;
+    private final String marker;
+    private final String mdcKey;
+    private final String mdcValue;
+
+    public IndexRoute(String index, String[] loggerPrefixes, Level[] levels, String marker, String mdcKey, String mdcValue) {
+        this.index = index;
+        this.loggerPrefixes = loggerPrefixes;
+        this.levels = levels;
+        this.marker = marker;
+        this.mdcKey = mdcKey;
+        this.mdcValue = mdcValue;
+    }
+
+    public boolean matches(LogEvent event) {
+        if (levels!=null && !matchesLevel(event.getLevel()))
+            return false;
+        if (loggerPrefixes!=null && !matchesLogger(event.getLoggerName()))
+            return false;
+        if (marker!=null) {
+            Marker eventMarker = event.getMarker();
+            if (eventMarker==null || !eventMarker.isInstanceOf(marker))
+                return false;
+        }
+        if (mdcKey!=null) {
+            Object value = event.getContextData()!=null ? event.getContextData().getValue(mdcKey) : null;
+            if (value==null || (mdcValue!=null && !mdcValue.equals(value instanceof String ? value : String.valueOf(value))))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean matchesLevel(Level level) {
+        for (Level routeLevel : levels)
+            if (routeLevel == level)
+                return true;
+        return false;
+    }
+
+    private boolean matchesLogger(String loggerName) {
+        if (loggerName==null)
+            return false;
+        for (String prefix : loggerPrefixes)
+            if (loggerName.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexRoute[index=" + index + (loggerPrefixes!=null ? ", logger=" + String.join(",", loggerPrefixes) : "")
+                + (levels!=null ? ", level=" + Arrays.toString(levels) : "") + (marker!=null ? ", marker=" + marker : "")
+                + (mdcKey!=null ? ", mdcKey=" + mdcKey + (mdcValue!=null ? ", mdcValue=" + mdcValue : "") : "") + "]";
+    }
+
+    /**
+     * @param index destination index (it can contain date patterns, like the appender index)
+     * @param logger comma separated logger name prefixes
+     * @param level comma separated levels
+     * @param marker marker name (events with this marker or with a marker having it as parent)
+     * @param mdcKey MDC key the events must have
+     * @param mdcValue MDC value (any value if not specified)
+     */
+    @PluginFactory
+    public static IndexRoute createRoute(@PluginAttribute("index") String index,
+                                         @PluginAttribute("logger") String logger,
+                                         @PluginAttribute("level") String level,
+                                         @PluginAttribute("marker") String marker,
+                                         @PluginAttribute("mdcKey") String mdcKey,
+                                         @PluginAttribute("mdcValue") String mdcValue) {
+        if (isBlank(index)) {
+            LOGGER.error("No index provided for Elastic appender index route");
+            return null;
+        }
+        Level[] levels = null;
+        if (!isBlank(level)) {
+            levels = Arrays.stream(split(level)).map(name -> Level.toLevel(name, null)).toArray(Level[]::new);
+            if (Arrays.asList(levels).contains(null)) {
+                LOGGER.error("Invalid level list '{}' of Elastic appender index route to '{}'", level, index);
+                return null;
+            }
+        }
+        return new IndexRoute(index.trim(), isBlank(logger) ? null : split(logger), levels,
+                isBlank(marker) ? null : marker.trim(), isBlank(mdcKey) ? null : mdcKey.trim(), mdcValue);
+    }
+
+    private static String[] split(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toArray(String[]::new);
+    }
+
+    private static boolean isBlank(String value) {
+        return value==null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.ivanocortesini.log4j.elastic.config;
+
+public enum OverflowPolicy {
+    //Producers wait for free space
+    BLOCK,
+    //New documents are discarded while the buffer is full
+    DROP_NEWEST,
+    //Oldest buffered documents are discarded to make room for new ones (new ones if the consumer is busy): producers never wait
+    DROP_OLDEST,
+    //Less severe levels are discarded first as the buffer fills up, WARN and more severe ones block
+    SHED_BY_LEVEL;
+
+    //Accepts "block", "dropNewest", "drop-oldest", "SHED_BY_LEVEL"...
+    public static OverflowPolicy parse(String value) {
+        String name = value==null ? "" : value.trim().replaceAll("[-_\\s]", "");
+        for (OverflowPolicy policy : values())
+            if (policy.name().replace("_", "").equalsIgnoreCase(name))
+                return policy;
+        return BLOCK;
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Instrumentation of an Elasticsearch appender. Recording methods are lock-free and allocation-free
+ * (striped counters), buffer gauges are read from the appender only when metrics are collected.
+ */
+public final class AppenderMetrics implements AppenderMetricsMBean {
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private final String appenderName;
+
+    private final LongAdder eventsAccepted = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventsFailed = new LongAdder();
+    private final LongAdder eventsCollapsed = new LongAdder();
+    private final LongAdder bulksSent = new LongAdder();
+    private final LongAdder bulkDocumentsSent = new LongAdder();
+    private final LongAdder bulkBytesSent = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Histogram encodeTime = new Histogram();
+    private final Histogram bulkLatency = new Histogram();
+
+    private volatile LongSupplier bufferDepth = () -> 0;
+    private volatile LongSupplier bufferBytes = () -> 0;
+
+    public AppenderMetrics(String appenderName) {
+        this.appenderName = appenderName;
+    }
+
+    public String getAppenderName() {
+        return appenderName;
+    }
+
+
+    //Recording
+    public void eventAccepted() {
+        eventsAccepted.increment();
+    }
+    public void eventsDropped(long events) {
+        eventsDropped.add(events);
+    }
+    public void eventsFailed(long events) {
+        eventsFailed.add(events);
+    }
+    public void eventCollapsed() {
+        eventsCollapsed.increment();
+    }
+    public void encoded(long nanos) {
+        encodeTime.record(nanos);
+    }
+    public void bulkSent(int documents, long bytes, long latencyNanos) {
+        bulksSent.increment();
+        bulkDocumentsSent.add(documents);
+        bulkBytesSent.add(bytes);
+        bulkLatency.record(latencyNanos);
+    }
+    public void bulkRetried() {
+        retries.increment();
+    }
+
+    //Gauges (number of buffered documents, bytes of open, held and in-flight bulk requests)
+    public void setBufferGauges(LongSupplier bufferDepth, LongSupplier bufferBytes) {
+        this.bufferDepth = bufferDepth;
+        this.bufferBytes = bufferBytes;
+    }
+
+
+    //Reading
+    @Override
+    public long getEventsAccepted() {
+        return eventsAccepted.sum();
+    }
+    @Override
+    public long getEventsDropped() {
+        return eventsDropped.sum();
+    }
+    @Override
+    public long getEventsFailed() {
+        return eventsFailed.sum();
+    }
+    @Override
+    public long getEventsCollapsed() {
+        return eventsCollapsed.sum();
+    }
+    @Override
+    public long getBufferDepth() {
+        return bufferDepth.getAsLong();
+    }
+    @Override
+    public long getBufferBytes() {
+        return bufferBytes.getAsLong();
+    }
+    @Override
+    public long getBulksSent() {
+        return bulksSent.sum();
+    }
+    @Override
+    public long getBulkBytesSent() {
+        return bulkBytesSent.sum();
+    }
+    @Override
+    public double getDocumentsPerBulk() {
+        long bulks = bulksSent.sum();
+        return bulks > 0 ? (double) bulkDocumentsSent.sum() / bulks : 0;
+    }
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public Histogram getEncodeTime() {
+        return encodeTime;
+    }
+    public Histogram getBulkLatency() {
+        return bulkLatency;
+    }
+
+    @Override
+    public double getEncodeTimeMeanMicros() {
+        return encodeTime.getMean() / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getEncodeTimeP99Micros() {
+        return encodeTime.getValueAtPercentile(99) / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getEncodeTimeMaxMicros() {
+        return encodeTime.getMax() / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getBulkLatencyMeanMicros() {
+        return bulkLatency.getMean() / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getBulkLatencyP50Micros() {
+        return bulkLatency.getValueAtPercentile(50) / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getBulkLatencyP99Micros() {
+        return bulkLatency.getValueAtPercentile(99) / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getBulkLatencyP999Micros() {
+        return bulkLatency.getValueAtPercentile(99.9) / NANOS_PER_MICRO;
+    }
+    @Override
+    public double getBulkLatencyMaxMicros() {
+        return bulkLatency.getMax() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public void resetHistograms() {
+        encodeTime.reset();
+        bulkLatency.reset();
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+/**
+ * JMX view of an Elasticsearch appender metrics (times are in microseconds).
+ */
+public interface AppenderMetricsMBean {
+
+    long getEventsAccepted();
+    long getEventsDropped();
+    long getEventsFailed();
+    long getEventsCollapsed();
+
+    long getBufferDepth();
+    long getBufferBytes();
+
+    long getBulksSent();
+    long getBulkBytesSent();
+    double getDocumentsPerBulk();
+    long getRetries();
+
+    double getEncodeTimeMeanMicros();
+    double getEncodeTimeP99Micros();
+    double getEncodeTimeMaxMicros();
+
+    double getBulkLatencyMeanMicros();
+    double getBulkLatencyP50Micros();
+    double getBulkLatencyP99Micros();
+    double getBulkLatencyP999Micros();
+    double getBulkLatencyMaxMicros();
+
+    void resetHistograms();
+}
@@ -0,0 +1,90 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free and allocation-free histogram of non negative values (e.g. nanoseconds), with the same
+ * log-linear bucketing of HdrHistogram: every power of 2 range is split into 8 linear sub-buckets,
+ * so reported percentiles are within 12.5% of recorded values. Every bucket is a striped {@link LongAdder}:
+ * concurrent recording threads don't contend on the same counter.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = new LongAdder();
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucketCount : counts)
+            count += bucketCount.sum();
+        return count;
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count > 0 ? (double) sum.sum() / count : 0;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    //Highest value equivalent to the one at the given percentile (0-100)
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += snapshot[i] = counts[i].sum();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            if ((seen += snapshot[i]) >= rank)
+                return Math.min(highestEquivalentValue(i), getMax());
+        return getMax();
+    }
+
+    public void reset() {
+        for (LongAdder bucketCount : counts)
+            bucketCount.reset();
+        sum.reset();
+        max.reset();
+    }
+
+
+    //Bucketing
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestEquivalentValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
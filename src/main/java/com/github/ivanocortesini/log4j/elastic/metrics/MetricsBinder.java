@@ -0,0 +1,15 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+/**
+ * Service provider interface to expose appender metrics to a metrics library (e.g. as Micrometer
+ * function counters and gauges). Implementations are loaded with {@link java.util.ServiceLoader}:
+ * declare them in "META-INF/services/com.github.ivanocortesini.log4j.elastic.metrics.MetricsBinder".
+ */
+public interface MetricsBinder {
+
+    //Called when an appender starts: metrics can be read at any time until it stops
+    void bind(AppenderMetrics metrics);
+
+    default void unbind(AppenderMetrics metrics) {
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Publishes appender metrics as JMX MBeans ("com.github.ivanocortesini.log4j.elastic:type=ElasticAppender,name=...")
+ * and to the {@link MetricsBinder} service providers.
+ */
+public final class MetricsRegistry {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final String DOMAIN = "com.github.ivanocortesini.log4j.elastic";
+
+    private static List<MetricsBinder> binders;
+
+    private MetricsRegistry() {}
+
+    public static void register(AppenderMetrics metrics, boolean jmx) {
+        if (jmx)
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = objectName(metrics);
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            } catch (JMException | RuntimeException e) {
+                LOGGER.error("Error registering Elasticsearch appender '" + metrics.getAppenderName() + "' MBean", e);
+            }
+        for (MetricsBinder binder : binders())
+            try {
+                binder.bind(metrics);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error binding Elasticsearch appender '" + metrics.getAppenderName() + "' metrics", e);
+            }
+    }
+
+    public static void unregister(AppenderMetrics metrics) {
+        unregister(metrics, true);
+    }
+
+    //The MBean isn't unregistered if jmx is false (e.g. it's been replaced by the metrics of a new appender with the same name)
+    public static void unregister(AppenderMetrics metrics, boolean jmx) {
+        if (jmx)
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = objectName(metrics);
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+            } catch (JMException | RuntimeException e) {
+                LOGGER.error("Error unregistering Elasticsearch appender '" + metrics.getAppenderName() + "' MBean", e);
+            }
+        for (MetricsBinder binder : binders())
+            try {
+                binder.unbind(metrics);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error unbinding Elasticsearch appender '" + metrics.getAppenderName() + "' metrics", e);
+            }
+    }
+
+    static ObjectName objectName(AppenderMetrics metrics) throws JMException {
+        return new ObjectName(DOMAIN + ":type=ElasticAppender,name=" + ObjectName.quote(metrics.getAppenderName()));
+    }
+
+    private static synchronized List<MetricsBinder> binders() {
+        if (binders==null) {
+            binders = new ArrayList<>();
+            try {
+                for (MetricsBinder binder : ServiceLoader.load(MetricsBinder.class, MetricsRegistry.class.getClassLoader()))
+                    binders.add(binder);
+            } catch (RuntimeException | ServiceConfigurationError e) {
+                LOGGER.error("Error loading Elasticsearch appender metrics binders", e);
+            }
+        }
+        return binders;
+    }
+}
@@ -0,0 +1,636 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Thread confined log document encoder. Following Log4j2 garbage-free approach, output buffer, JSON generator,
+ * message text buffer and timestamp text are reused between events: on the steady-state hot path
+ * a document is encoded without allocating memory (except for @Logged parameters serializers and error stack traces copies).
+ * Encoded document bytes are valid until the next {@link #encode} call on the same thread.
+ * Every thread has an encoder for each {@link DocumentFormat}. Smile documents are independent streams (with header):
+ * a new generator is created for every document, and shared names are disabled so that cached stacks can be copied into it.
+ * Size limits of the schema are applied while encoding: texts are cut at the limit, @Logged fields and documents
+ * bigger than their limit are written again without them (without the optional fields for documents).
+ */
+public final class DocEncoder {
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	private static final ThreadLocal<DocEncoder> encoders = ThreadLocal.withInitial(() -> new DocEncoder(DocumentFormat.JSON));
+	private static final ThreadLocal<DocEncoder> smileEncoders = ThreadLocal.withInitial(() -> new DocEncoder(DocumentFormat.SMILE));
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+	private static final JsonFactory SMILE_FACTORY = new SmileFactory()
+			.disable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+	//Fragments (cached stacks) copied into Smile documents
+	private static final JsonFactory SMILE_FRAGMENT_FACTORY = new SmileFactory()
+			.disable(SmileGenerator.Feature.WRITE_HEADER)
+			.disable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+	//Buffers grown beyond these limits by unusually big events are released
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	private static final int MAX_REUSABLE_BUFFER_SIZE = 256 * 1024;
+	private static final int MAX_REUSABLE_MESSAGE_SIZE = 64 * 1024;
+
+	private static final DateTimeFormatter TIMESTAMP_SECOND_FORMAT = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd'T'HH:mm:ss.")
+			.withZone(ZoneOffset.UTC);
+
+	//Pre-encoded field names (standard fields names are in the document schema)
+	static final SerializedString CLASS = new SerializedString("class");
+	static final SerializedString METHOD = new SerializedString("method");
+	static final SerializedString LINE = new SerializedString("line");
+	static final SerializedString STRING = new SerializedString("string");
+	static final SerializedString ERROR_MESSAGE = new SerializedString("errorMessage");
+	static final SerializedString ERROR_TYPE = new SerializedString("errorType");
+	static final SerializedString STACK = new SerializedString("stack");
+	static final SerializedString CAUSES = new SerializedString("causes");
+	static final SerializedString COUNT = new SerializedString("count");
+	static final SerializedString FIRST_TIMESTAMP = new SerializedString("firstTimestamp");
+	static final SerializedString LAST_TIMESTAMP = new SerializedString("lastTimestamp");
+	static final SerializedString SAMPLE_PARAMETERS = new SerializedString("sampleParameters");
+
+	static final int MAX_CAUSES_DEPTH = 16;
+	private static final int HEX_LENGTH = 16;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	//Cached stacks are encoded in the encoder format: a cache must be used with a single format and stack frames limit
+	static final StackTraceCache DEFAULT_STACK_TRACE_CACHE = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+	private static final StackTraceCache DEFAULT_SMILE_STACK_TRACE_CACHE = new StackTraceCache(StackTraceCache.DEFAULT_SIZE);
+
+	private static final TriConsumer<String, Object, JsonGenerator> CONTEXT_DATA_WRITER = (key, value, generator) -> {
+		try {
+			generator.writeFieldName(key);
+			if (value instanceof String)
+				generator.writeString((String) value);
+			else
+				generator.writeString(String.valueOf(value));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	};
+
+
+	private final JsonFactory factory;
+	//Binary (Smile) documents: a generator for every document, static fields written field by field
+	private final boolean binary;
+	private final ReusableOutputStream out = new ReusableOutputStream(INITIAL_BUFFER_SIZE);
+	private JsonGenerator generator;
+
+	private StringBuilder text = new StringBuilder(256);
+	private char[] chars = new char[256];
+
+	private final Throwable[] errors = new Throwable[MAX_CAUSES_DEPTH];
+	private final StackTraceElement[][] stacks = new StackTraceElement[MAX_CAUSES_DEPTH][];
+	private final char[] hex = new char[HEX_LENGTH];
+	private final ReusableOutputStream stackOut = new ReusableOutputStream(INITIAL_BUFFER_SIZE);
+	private JsonGenerator stackGenerator;
+
+	//Truncation state of the document being written
+	private boolean truncated;
+	//@Logged parameters bigger than the field limit (the last bit stands for every parameter from the 64th)
+	private long oversizedParameters;
+	//Document bigger than its limit: written with standard fields only
+	private boolean reduced;
+
+	private long timestampSecond = Long.MIN_VALUE;
+	private final char[] timestamp = "1970-01-01T00:00:00.000Z".toCharArray();
+
+
+	public static DocEncoder get() {
+		return encoders.get();
+	}
+
+	public static DocEncoder get(DocumentFormat format) {
+		return format == DocumentFormat.SMILE ? smileEncoders.get() : encoders.get();
+	}
+
+	DocEncoder(DocumentFormat format) {
+		binary = format != DocumentFormat.JSON;
+		factory = binary ? SMILE_FACTORY : JSON_FACTORY;
+		generator = createGenerator(factory, out);
+		stackGenerator = createGenerator(binary ? SMILE_FRAGMENT_FACTORY : JSON_FACTORY, stackOut);
+	}
+
+	private JsonGenerator createGenerator(JsonFactory factory, ReusableOutputStream out) {
+		try {
+			JsonGenerator jsonGenerator = factory.createGenerator(out);
+			//Root level documents are written one after the other into the same (reset) output stream
+			if (!binary)
+				jsonGenerator.setRootValueSeparator(null);
+			return jsonGenerator;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	//Encoding
+	public DocEncoder encode(LogEvent logEvent, boolean includeLocation, boolean ignoreExceptions) throws IOException {
+		return encode(logEvent, logEvent.getContextData(), binary ? DEFAULT_SMILE_STACK_TRACE_CACHE : DEFAULT_STACK_TRACE_CACHE, includeLocation, ignoreExceptions);
+	}
+
+	public DocEncoder encode(LogEvent logEvent, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions) throws IOException {
+		return encode(logEvent, logEvent.getContextData(), stackTraceCache, includeLocation, ignoreExceptions);
+	}
+
+	public DocEncoder encode(LogEvent logEvent, ReadOnlyStringMap contextData, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions) throws IOException {
+		return encode(logEvent, contextData, DocSchema.DEFAULT, stackTraceCache, includeLocation, ignoreExceptions, null);
+	}
+
+	public DocEncoder encode(LogEvent logEvent, DocSchema schema, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions) throws IOException {
+		return encode(logEvent, logEvent.getContextData(), schema, stackTraceCache, includeLocation, ignoreExceptions, null);
+	}
+
+	//Summary document of collapsed events
+	DocEncoder encode(EventCollapser.Summary summary, DocSchema schema, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions) throws IOException {
+		return encode(summary.event, summary.event.getContextData(), schema, stackTraceCache, includeLocation, ignoreExceptions, summary);
+	}
+
+	private DocEncoder encode(LogEvent logEvent, ReadOnlyStringMap contextData, DocSchema schema, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions, EventCollapser.Summary summary) throws IOException {
+		out.trim(MAX_REUSABLE_BUFFER_SIZE);
+		out.reset();
+		out.setLimit(schema.maxDocumentBytes > 0 ? schema.maxDocumentBytes : Integer.MAX_VALUE);
+		oversizedParameters = 0;
+		reduced = false;
+		if (binary)
+			generator = createGenerator(factory, out);
+		try {
+			boolean withLoggedParameters = true;
+			for (;;)
+				try {
+					writeDocument(logEvent, contextData, schema, stackTraceCache, includeLocation, ignoreExceptions, withLoggedParameters, summary);
+					if (binary)
+						//Generator buffers are recycled
+						generator.close();
+					else
+						generator.flush();
+					break;
+				} catch (LoggedParameterException e) {
+					//A partially written parameter can't be rolled back: the document is written again without parameters
+					withLoggedParameters = false;
+					restart();
+				} catch (OversizedParameterException e) {
+					oversizedParameters |= 1L << Math.min(e.index, 63);
+					restart();
+				} catch (ReusableOutputStream.LimitExceededException | UncheckedIOException e) {
+					//Oversized document: standard fields only are written again, texts cut within the limit
+					if (reduced || (e instanceof UncheckedIOException && !(e.getCause() instanceof ReusableOutputStream.LimitExceededException)))
+						throw e;
+					reduced = true;
+					out.setLimit(Integer.MAX_VALUE);
+					restart();
+				}
+		} catch (UncheckedIOException e) {
+			generator = createGenerator(factory, out);
+			throw e.getCause();
+		} catch (IOException | RuntimeException e) {
+			//Generator state is unknown after a failure
+			generator = createGenerator(factory, out);
+			throw e;
+		}
+		return this;
+	}
+
+	//The document is written again from the beginning
+	private void restart() {
+		out.reset();
+		generator = createGenerator(factory, out);
+	}
+
+	public byte[] getBuffer() {
+		return out.getBuffer();
+	}
+
+	public int getLength() {
+		return out.size();
+	}
+
+
+	//@Logged parameters are serialized straight into the document generator, without intermediate copies.
+	//The field limit is applied lowering the output limit: serialization stops as soon as it's exceeded
+	private void writeLoggedParameter(LogEvent logEvent, String fieldName, Object parameter, int index, DocSchema schema, boolean ignoreExceptions) throws IOException {
+		int documentLimit = out.getLimit();
+		int fieldLimit = documentLimit;
+		try {
+			if (schema.maxFieldBytes > 0) {
+				generator.flush();
+				fieldLimit = (int) Math.min(documentLimit, (long) out.size() + schema.maxFieldBytes);
+				out.setLimit(fieldLimit);
+			}
+			generator.writeFieldName(fieldName);
+			DocUtils.getWriter(parameter).writeValue(generator, parameter);
+			if (schema.maxFieldBytes > 0)
+				generator.flush();
+		} catch (Exception ex) {
+			if (isLimitExceeded(ex)) {
+				if (fieldLimit < documentLimit)
+					throw new OversizedParameterException(index);
+				throw new ReusableOutputStream.LimitExceededException();
+			}
+			LOGGER.error("Error logging into Elasticsearch for logger '"+logEvent.getLoggerName()+"' converting parameter '"+fieldName+"'",ex);
+			if (!ignoreExceptions)
+				throw new AppenderLoggingException(ex);
+			throw new LoggedParameterException();
+		} finally {
+			out.setLimit(documentLimit);
+		}
+	}
+
+	//Serializers can wrap output exceptions
+	private static boolean isLimitExceeded(Throwable error) {
+		for (int depth = 0; error!=null && depth < MAX_CAUSES_DEPTH; error = error.getCause(), depth++)
+			if (error instanceof ReusableOutputStream.LimitExceededException)
+				return true;
+		return false;
+	}
+
+	//Fields excluded by the schema have no name
+	private void writeDocument(LogEvent logEvent, ReadOnlyStringMap contextData, DocSchema schema, StackTraceCache stackTraceCache, boolean includeLocation, boolean ignoreExceptions, boolean withLoggedParameters, EventCollapser.Summary summary) throws IOException {
+		Message message = logEvent.getMessage();
+		truncated = oversizedParameters != 0 || reduced;
+		int maxMessageBytes = reduced ? reducedMessageLimit(schema) : schema.maxMessageBytes;
+		generator.writeStartObject();
+
+		//@Logged parameters
+		if (withLoggedParameters && !reduced) {
+			Object[] parameters = message.getParameters();
+			if (parameters!=null)
+				for (int i = 0; i < parameters.length; i++) {
+					Object parameter = parameters[i];
+					if (parameter!=null && (oversizedParameters & 1L << Math.min(i, 63)) == 0) {
+						String fieldName = DocUtils.getFieldName(parameter);
+						if (fieldName!=null)
+							writeLoggedParameter(logEvent, fieldName, parameter, i, schema, ignoreExceptions);
+					}
+				}
+		}
+
+		//MDC parameters
+		if (contextData!=null && !contextData.isEmpty() && !reduced) {
+			if (schema.mdcKeys==null)
+				contextData.forEach(CONTEXT_DATA_WRITER, generator);
+			else
+				for (int i = 0; i < schema.mdcKeys.length; i++) {
+					Object value = contextData.getValue(schema.mdcKeys[i]);
+					if (value!=null) {
+						generator.writeFieldName(schema.mdcFields[i]);
+						generator.writeString(value instanceof String ? (String) value : String.valueOf(value));
+					}
+				}
+		}
+
+		//Standard message fields
+		if (schema.message!=null) {
+			generator.writeFieldName(schema.message);
+			if (schema.messageLayout!=null)
+				writeLayoutMessage(logEvent, schema, maxMessageBytes);
+			else
+				writeMessage(message, maxMessageBytes);
+		}
+		if (schema.level!=null) {
+			generator.writeFieldName(schema.level);
+			generator.writeString(logEvent.getLevel().name());
+		}
+		if (schema.loggerName!=null) {
+			generator.writeFieldName(schema.loggerName);
+			generator.writeString(logEvent.getLoggerName());
+		}
+		if (schema.timestamp!=null) {
+			generator.writeFieldName(schema.timestamp);
+			writeTimestamp(logEvent.getTimeMillis());
+		}
+		if (schema.thread!=null) {
+			generator.writeFieldName(schema.thread);
+			generator.writeString(logEvent.getThreadName());
+		}
+
+		if (includeLocation) {
+			StackTraceElement stackTraceElement = logEvent.getSource();
+			if (stackTraceElement!=null) {
+				if (schema.className!=null) {
+					generator.writeFieldName(schema.className);
+					generator.writeString(stackTraceElement.getClassName());
+				}
+				if (schema.method!=null) {
+					generator.writeFieldName(schema.method);
+					generator.writeString(stackTraceElement.getMethodName());
+				}
+				if (schema.line!=null) {
+					generator.writeFieldName(schema.line);
+					generator.writeNumber(stackTraceElement.getLineNumber());
+				}
+			}
+		}
+
+		Throwable error = logEvent.getThrown();
+		if (error!=null)
+			writeError(error, schema, stackTraceCache, includeLocation, maxMessageBytes);
+
+		if (summary!=null)
+			writeSummary(summary);
+
+		if (truncated && schema.truncated!=null) {
+			generator.writeFieldName(schema.truncated);
+			generator.writeBoolean(true);
+		}
+
+		//Static fields: pre-encoded fragment copied after the last written field
+		if (schema.staticFields!=null) {
+			if (!binary) {
+				byte[] staticFields = generator.getOutputContext().getEntryCount() > 0 ? schema.staticFieldsAfterField : schema.staticFields;
+				generator.flush();
+				out.write(staticFields, 0, staticFields.length);
+			} else
+				for (int i = 0; i < schema.staticFieldNames.length; i++) {
+					generator.writeFieldName(schema.staticFieldNames[i]);
+					generator.writeString(schema.staticFieldValues[i]);
+				}
+		}
+
+		generator.writeEndObject();
+	}
+
+	//Texts of a reduced document take a quarter of the document limit at most
+	private static int reducedMessageLimit(DocSchema schema) {
+		int limit = Math.max(1, schema.maxDocumentBytes / 4);
+		return schema.maxMessageBytes > 0 ? Math.min(schema.maxMessageBytes, limit) : limit;
+	}
+
+	//Layout output (e.g. a pattern) without trailing line separators
+	private void writeLayoutMessage(LogEvent logEvent, DocSchema schema, int maxBytes) throws IOException {
+		if (text.capacity() > MAX_REUSABLE_MESSAGE_SIZE)
+			text = new StringBuilder(256);
+		text.setLength(0);
+		if (schema.messageSerializer!=null)
+			schema.messageSerializer.toSerializable(logEvent, text);
+		else
+			text.append(schema.messageLayout.toSerializable(logEvent));
+		int length = text.length();
+		while (length > 0 && (text.charAt(length - 1) == '\n' || text.charAt(length - 1) == '\r'))
+			length--;
+		text.setLength(length);
+		writeText(text, maxBytes);
+	}
+
+	private void writeSummary(EventCollapser.Summary summary) throws IOException {
+		generator.writeFieldName(COUNT);
+		generator.writeNumber(summary.count);
+		generator.writeFieldName(FIRST_TIMESTAMP);
+		writeTimestamp(summary.firstTimeMillis);
+		generator.writeFieldName(LAST_TIMESTAMP);
+		writeTimestamp(summary.lastTimeMillis);
+		if (!summary.sampleParameters.isEmpty() && !reduced) {
+			generator.writeFieldName(SAMPLE_PARAMETERS);
+			generator.writeStartArray();
+			for (String[] parameters : summary.sampleParameters) {
+				generator.writeStartArray();
+				for (String parameter : parameters)
+					generator.writeString(parameter);
+				generator.writeEndArray();
+			}
+			generator.writeEndArray();
+		}
+	}
+
+	//Error fields: stacks of the error and of its causes are encoded once per fingerprint and then copied from cache
+	private void writeError(Throwable error, DocSchema schema, StackTraceCache stackTraceCache, boolean includeLocation, int maxMessageBytes) throws IOException {
+		int depth = collectErrors(error);
+		try {
+			long fingerprint = StackTraceCache.fingerprint(errors, stacks, depth);
+
+			if (schema.errorMessage!=null) {
+				generator.writeFieldName(schema.errorMessage);
+				writeString(error.getLocalizedMessage(), maxMessageBytes);
+			}
+			if (schema.errorType!=null) {
+				generator.writeFieldName(schema.errorType);
+				generator.writeString(error.getClass().getName());
+			}
+			if (schema.errorFingerprint!=null) {
+				generator.writeFieldName(schema.errorFingerprint);
+				writeHex(fingerprint);
+			}
+
+			if (includeLocation && schema.stack!=null && !reduced) {
+				byte[][] encodedStacks = stackTraceCache.get(fingerprint);
+				if (encodedStacks==null || encodedStacks.length!=depth)
+					stackTraceCache.put(fingerprint, encodedStacks = encodeStacks(depth, schema.maxStackFrames));
+				if (schema.maxStackFrames > 0)
+					for (int i = 0; i < depth; i++)
+						truncated |= stacks[i].length > schema.maxStackFrames;
+
+				generator.writeFieldName(schema.stack);
+				writeStack(encodedStacks[0]);
+				if (depth > 1) {
+					generator.writeFieldName(schema.causes);
+					generator.writeStartArray();
+					for (int i = 1; i < depth; i++) {
+						generator.writeStartObject();
+						generator.writeFieldName(ERROR_MESSAGE);
+						writeString(errors[i].getLocalizedMessage(), maxMessageBytes);
+						generator.writeFieldName(ERROR_TYPE);
+						generator.writeString(errors[i].getClass().getName());
+						generator.writeFieldName(STACK);
+						writeStack(encodedStacks[i]);
+						generator.writeEndObject();
+					}
+					generator.writeEndArray();
+				}
+			}
+		} finally {
+			//Errors must not be retained by the thread confined encoder
+			Arrays.fill(errors, 0, depth, null);
+			Arrays.fill(stacks, 0, depth, null);
+		}
+	}
+
+	private int collectErrors(Throwable error) {
+		int depth = 0;
+		for (Throwable current = error; current!=null && depth < MAX_CAUSES_DEPTH; current = current.getCause()) {
+			//Causes chain loops are possible
+			for (int i = 0; i < depth; i++)
+				if (errors[i]==current)
+					return depth;
+			errors[depth] = current;
+			stacks[depth++] = current.getStackTrace();
+		}
+		return depth;
+	}
+
+	private byte[][] encodeStacks(int depth, int maxFrames) throws IOException {
+		try {
+			return writeStacks(depth, maxFrames);
+		} catch (IOException | RuntimeException e) {
+			stackGenerator = createGenerator(binary ? SMILE_FRAGMENT_FACTORY : JSON_FACTORY, stackOut);
+			throw e;
+		}
+	}
+	private byte[][] writeStacks(int depth, int maxFrames) throws IOException {
+		byte[][] encodedStacks = new byte[depth][];
+		for (int i = 0; i < depth; i++) {
+			stackOut.reset();
+			writeStackFrames(stackGenerator, stacks[i], maxFrames > 0 ? Math.min(maxFrames, stacks[i].length) : stacks[i].length);
+			stackGenerator.flush();
+			encodedStacks[i] = Arrays.copyOf(stackOut.getBuffer(), stackOut.size());
+		}
+		return encodedStacks;
+	}
+	//Outermost frames beyond the limit are left out
+	private static void writeStackFrames(JsonGenerator generator, StackTraceElement[] stack, int frames) throws IOException {
+		generator.writeStartArray();
+		for (int i = 0; i < frames; i++) {
+			StackTraceElement ste = stack[i];
+			generator.writeStartObject();
+			generator.writeFieldName(CLASS);
+			generator.writeString(ste.getClassName());
+			generator.writeFieldName(METHOD);
+			generator.writeString(ste.getMethodName());
+			generator.writeFieldName(LINE);
+			generator.writeNumber(ste.getLineNumber());
+			generator.writeFieldName(STRING);
+			generator.writeString(ste.toString());
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+	}
+
+	//Pre-encoded stack array: the generator writes the array start and end, encoded frames are copied between them
+	private void writeStack(byte[] encodedStack) throws IOException {
+		generator.writeStartArray();
+		generator.flush();
+		out.write(encodedStack, 1, encodedStack.length - 2);
+		generator.writeEndArray();
+	}
+
+	private void writeHex(long value) throws IOException {
+		for (int i = HEX_LENGTH - 1; i >= 0; i--, value >>>= 4)
+			hex[i] = HEX_DIGITS[(int) (value & 0xf)];
+		generator.writeString(hex, 0, HEX_LENGTH);
+	}
+
+	//Parameterized messages are formatted into a reused text buffer instead of a new String
+	private void writeMessage(Message message, int maxBytes) throws IOException {
+		if (message instanceof StringBuilderFormattable) {
+			if (text.capacity() > MAX_REUSABLE_MESSAGE_SIZE)
+				text = new StringBuilder(256);
+			text.setLength(0);
+			((StringBuilderFormattable) message).formatTo(text);
+			writeText(text, maxBytes);
+		} else
+			writeString(message.getFormattedMessage(), maxBytes);
+	}
+
+	//Strings beyond the limit are cut through the text buffer
+	private void writeString(String value, int maxBytes) throws IOException {
+		int length = value!=null ? fittingLength(value, maxBytes) : 0;
+		if (value==null || length == value.length()) {
+			generator.writeString(value);
+			return;
+		}
+		if (text.capacity() > MAX_REUSABLE_MESSAGE_SIZE)
+			text = new StringBuilder(256);
+		text.setLength(0);
+		text.append(value, 0, length);
+		truncated = true;
+		writeText(text, 0);
+	}
+
+	private void writeText(StringBuilder value, int maxBytes) throws IOException {
+		int length = fittingLength(value, maxBytes);
+		truncated |= length < value.length();
+		if (chars.length < length)
+			chars = new char[Math.max(length, chars.length << 1)];
+		value.getChars(0, length, chars, 0);
+		generator.writeString(chars, 0, length);
+		if (chars.length > MAX_REUSABLE_MESSAGE_SIZE)
+			chars = new char[256];
+	}
+
+	//Number of leading chars whose UTF-8 encoding fits in the limit (0 means unlimited), surrogate pairs are never split
+	static int fittingLength(CharSequence value, int maxBytes) {
+		int length = value.length();
+		if (maxBytes <= 0 || length <= maxBytes / 3)
+			return length;
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				bytes++;
+			else if (c < 0x800)
+				bytes += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				if (bytes + 4 > maxBytes)
+					return i;
+				bytes += 4;
+				i++;
+				continue;
+			} else
+				bytes += 3;
+			if (bytes > maxBytes)
+				return i;
+		}
+		return length;
+	}
+
+	//Timestamp text is the same as Elasticsearch default date format (UTC): only milliseconds change within a second
+	private void writeTimestamp(long timeMillis) throws IOException {
+		long second = Math.floorDiv(timeMillis, 1000L);
+		if (second != timestampSecond) {
+			TIMESTAMP_SECOND_FORMAT.format(Instant.ofEpochSecond(second)).getChars(0, 20, timestamp, 0);
+			timestampSecond = second;
+		}
+		int millis = (int) Math.floorMod(timeMillis, 1000L);
+		timestamp[20] = (char) ('0' + millis / 100);
+		timestamp[21] = (char) ('0' + millis / 10 % 10);
+		timestamp[22] = (char) ('0' + millis % 10);
+		generator.writeString(timestamp, 0, timestamp.length);
+	}
+
+	//Signals a @Logged parameter bigger than the field limit
+	private static final class OversizedParameterException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final int index;
+
+		OversizedParameterException(int index) {
+			super(null, null, false, false);
+			this.index = index;
+		}
+	}
+
+	//Signals an ignored @Logged parameter serialization failure
+	private static final class LoggedParameterException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		LoggedParameterException() {
+			super(null, null, false, false);
+		}
+	}
+
+}
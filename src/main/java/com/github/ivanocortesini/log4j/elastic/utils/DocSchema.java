@@ -0,0 +1,209 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled document fields schema: selection and renaming of standard fields, MDC keys whitelist,
+ * static fields, message layout and size limits. It's compiled once: field names are pre-encoded (excluded fields are null,
+ * so they're skipped at no cost) and static fields are pre-encoded as a single JSON fragment copied into every document.
+ */
+public final class DocSchema {
+	private static final Logger LOGGER = StatusLogger.getLogger();
+
+	public static final String[] STANDARD_FIELDS = {"message", "level", "logger", "timestamp", "thread", "class", "method", "line",
+			"errorMessage", "errorType", "errorFingerprint", "stack", "truncated"};
+	//Size limits are disabled by default
+	public static final int DEFAULT_MAX_MESSAGE_BYTES = 0;
+	public static final int DEFAULT_MAX_FIELD_BYTES = 0;
+	public static final int DEFAULT_MAX_STACK_FRAMES = 0;
+	public static final int DEFAULT_MAX_DOCUMENT_BYTES = 0;
+	public static final DocSchema DEFAULT = compile(null, null, null, null, null, null);
+
+	//Pre-encoded names of standard fields: null if excluded
+	final SerializedString message;
+	final SerializedString level;
+	final SerializedString loggerName;
+	final SerializedString timestamp;
+	final SerializedString thread;
+	final SerializedString className;
+	final SerializedString method;
+	final SerializedString line;
+	final SerializedString errorMessage;
+	final SerializedString errorType;
+	final SerializedString errorFingerprint;
+	final SerializedString stack;
+	final SerializedString causes;
+	final SerializedString truncated;
+
+	//MDC keys whitelist: null if every MDC key is written
+	final String[] mdcKeys;
+	final SerializedString[] mdcFields;
+
+	//Static fields fragment ("name":"value",...), with and without leading separator: null if no static field.
+	//Binary formats can't embed pre-encoded fragments: they use pre-encoded names and values
+	final byte[] staticFields;
+	final byte[] staticFieldsAfterField;
+	final SerializedString[] staticFieldNames;
+	final String[] staticFieldValues;
+
+	//Message formatted by the appender layout: null for the log event message
+	final Layout<?> messageLayout;
+	final AbstractStringLayout.Serializer2 messageSerializer;
+
+	//Size limits (0 if unlimited): UTF-8 bytes of messages and error messages, bytes of every @Logged field,
+	//frames of every error stack and bytes of the whole document
+	final int maxMessageBytes;
+	final int maxFieldBytes;
+	final int maxStackFrames;
+	final int maxDocumentBytes;
+
+	private DocSchema(Map<String, String> names, String[] mdcKeys, List<KeyValuePair> staticFields, Layout<?> messageLayout,
+					  int maxMessageBytes, int maxFieldBytes, int maxStackFrames, int maxDocumentBytes) {
+		message = field(names, "message");
+		level = field(names, "level");
+		loggerName = field(names, "logger");
+		timestamp = field(names, "timestamp");
+		thread = field(names, "thread");
+		className = field(names, "class");
+		method = field(names, "method");
+		line = field(names, "line");
+		errorMessage = field(names, "errorMessage");
+		errorType = field(names, "errorType");
+		errorFingerprint = field(names, "errorFingerprint");
+		stack = field(names, "stack");
+		causes = stack!=null ? DocEncoder.CAUSES : null;
+		truncated = field(names, "truncated");
+
+		this.mdcKeys = mdcKeys;
+		mdcFields = mdcKeys!=null ? Arrays.stream(mdcKeys).map(SerializedString::new).toArray(SerializedString[]::new) : null;
+
+		this.staticFields = encodeStaticFields(staticFields);
+		if (this.staticFields!=null) {
+			staticFieldsAfterField = new byte[this.staticFields.length + 1];
+			staticFieldsAfterField[0] = ',';
+			System.arraycopy(this.staticFields, 0, staticFieldsAfterField, 1, this.staticFields.length);
+			staticFieldNames = staticFields.stream().map(field -> new SerializedString(field.getKey())).toArray(SerializedString[]::new);
+			staticFieldValues = staticFields.stream().map(KeyValuePair::getValue).toArray(String[]::new);
+		} else {
+			staticFieldsAfterField = null;
+			staticFieldNames = null;
+			staticFieldValues = null;
+		}
+
+		this.messageLayout = messageLayout;
+		AbstractStringLayout.Serializer serializer = messageLayout instanceof PatternLayout ? ((PatternLayout) messageLayout).getEventSerializer() : null;
+		messageSerializer = serializer instanceof AbstractStringLayout.Serializer2 ? (AbstractStringLayout.Serializer2) serializer : null;
+
+		this.maxMessageBytes = Math.max(0, maxMessageBytes);
+		this.maxFieldBytes = Math.max(0, maxFieldBytes);
+		this.maxStackFrames = Math.max(0, maxStackFrames);
+		this.maxDocumentBytes = Math.max(0, maxDocumentBytes);
+	}
+
+	private static SerializedString field(Map<String, String> names, String field) {
+		String name = names.get(field);
+		return name!=null ? new SerializedString(name) : null;
+	}
+
+	/**
+	 * @param include comma separated standard fields to write (all if blank)
+	 * @param exclude comma separated standard fields not to write
+	 * @param rename comma separated standard fields new names, e.g. "level=log.level,logger=log.logger"
+	 * @param staticFields fields with the same value in every document
+	 * @param mdcKeys comma separated MDC keys to write (all if blank)
+	 * @param messageLayout layout producing the message field (log event message if null)
+	 */
+	public static DocSchema compile(String include, String exclude, String rename, List<KeyValuePair> staticFields, String mdcKeys, Layout<?> messageLayout) {
+		return compile(include, exclude, rename, staticFields, mdcKeys, messageLayout,
+				DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_MAX_FIELD_BYTES, DEFAULT_MAX_STACK_FRAMES, DEFAULT_MAX_DOCUMENT_BYTES);
+	}
+
+	/**
+	 * Same as {@link #compile(String, String, String, List, String, Layout)} with size limits (0 means unlimited):
+	 * truncated documents have the "truncated" field set to true.
+	 * @param maxMessageBytes maximum UTF-8 bytes of the message and of error messages
+	 * @param maxFieldBytes maximum bytes of every @Logged field: bigger fields are left out
+	 * @param maxStackFrames maximum frames of every error stack
+	 * @param maxDocumentBytes maximum document bytes: bigger documents are written again with standard fields only
+	 */
+	public static DocSchema compile(String include, String exclude, String rename, List<KeyValuePair> staticFields, String mdcKeys, Layout<?> messageLayout,
+									int maxMessageBytes, int maxFieldBytes, int maxStackFrames, int maxDocumentBytes) {
+		Map<String, String> names = new HashMap<>();
+		Set<String> included = isBlank(include) ? new HashSet<>(Arrays.asList(STANDARD_FIELDS)) : fieldSet(include);
+		//Truncation marker is written unless explicitly excluded
+		included.add("truncated");
+		if (!isBlank(exclude))
+			included.removeAll(fieldSet(exclude));
+		for (String field : included)
+			names.put(field, field);
+		if (!isBlank(rename))
+			for (String entry : split(rename)) {
+				String[] fieldAndName = entry.split("=", 2);
+				if (fieldAndName.length == 2 && isStandardField(fieldAndName[0].trim()) && !isBlank(fieldAndName[1]))
+					names.computeIfPresent(fieldAndName[0].trim(), (field, name) -> fieldAndName[1].trim());
+				else
+					LOGGER.warn("Invalid Elasticsearch appender field renaming '{}'", entry);
+			}
+		return new DocSchema(names, isBlank(mdcKeys) ? null : split(mdcKeys), staticFields, messageLayout,
+				maxMessageBytes, maxFieldBytes, maxStackFrames, maxDocumentBytes);
+	}
+
+	private static byte[] encodeStaticFields(List<KeyValuePair> staticFields) {
+		if (staticFields==null || staticFields.isEmpty())
+			return null;
+		ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+		try (JsonGenerator generator = new JsonFactory().createGenerator(fragment)) {
+			generator.writeStartObject();
+			for (KeyValuePair field : staticFields)
+				generator.writeStringField(field.getKey(), field.getValue());
+			generator.writeEndObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		//Object content only, without braces
+		byte[] object = fragment.toByteArray();
+		return Arrays.copyOfRange(object, 1, object.length - 1);
+	}
+
+
+	//Parsing utils
+	private static Set<String> fieldSet(String fields) {
+		Set<String> set = new HashSet<>();
+		for (String field : split(fields))
+			if (isStandardField(field))
+				set.add(field);
+			else
+				LOGGER.warn("Unknown Elasticsearch appender document field '{}'", field);
+		return set;
+	}
+
+	private static boolean isStandardField(String field) {
+		return Arrays.asList(STANDARD_FIELDS).contains(field);
+	}
+
+	private static String[] split(String list) {
+		return Arrays.stream(list.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toArray(String[]::new);
+	}
+
+	private static boolean isBlank(String value) {
+		return value==null || value.trim().isEmpty();
+	}
+}
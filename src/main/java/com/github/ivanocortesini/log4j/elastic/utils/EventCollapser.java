@@ -0,0 +1,230 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collapses bursts of repeated log events. Events are keyed by logger, level, unformatted message pattern
+ * and error fingerprint: the first event of a key within a time window is stored as usual, the following ones
+ * are only counted and, when the window expires, a single summary document is stored (the first collapsed event
+ * with "count", "firstTimestamp", "lastTimestamp" and "sampleParameters" fields).
+ * Keys are kept in a fixed size table: a key colliding with another active key isn't collapsed.
+ */
+public final class EventCollapser {
+	private static final Logger LOGGER = StatusLogger.getLogger();
+	static final int MAX_SAMPLES = 5;
+
+	/**
+	 * Stores an encoded document: bytes are valid only during the call.
+	 */
+	@FunctionalInterface
+	public interface DocumentSink {
+		void store(byte[] source, int length, LogEvent event) throws IOException;
+	}
+
+	//Snapshot of the events collapsed in a window
+	static final class Summary {
+		final LogEvent event;
+		final long count;
+		final long firstTimeMillis;
+		final long lastTimeMillis;
+		final List<String[]> sampleParameters;
+
+		Summary(LogEvent event, long count, long firstTimeMillis, long lastTimeMillis, List<String[]> sampleParameters) {
+			this.event = event;
+			this.count = count;
+			this.firstTimeMillis = firstTimeMillis;
+			this.lastTimeMillis = lastTimeMillis;
+			this.sampleParameters = sampleParameters;
+		}
+	}
+
+	//Collapsing state of a key, guarded by its monitor
+	private static final class Burst {
+		final long hash;
+		final String loggerName;
+		final Level level;
+		final String pattern;
+		final long fingerprint;
+		long windowEnd;
+		//Replaced by a colliding key: no more events are added
+		boolean retired;
+		LogEvent event;
+		long count;
+		long firstTimeMillis;
+		long lastTimeMillis;
+		List<String[]> sampleParameters;
+
+		Burst(long hash, String loggerName, Level level, String pattern, long fingerprint) {
+			this.hash = hash;
+			this.loggerName = loggerName;
+			this.level = level;
+			this.pattern = pattern;
+			this.fingerprint = fingerprint;
+		}
+
+		boolean matches(long hash, String loggerName, Level level, String pattern, long fingerprint) {
+			return this.hash==hash && this.level==level && this.fingerprint==fingerprint
+					&& Objects.equals(this.loggerName, loggerName) && Objects.equals(this.pattern, pattern);
+		}
+
+		//Only the first collapsed event is copied (events can be mutable and reused by Log4j), then a few parameters samples
+		void add(LogEvent logEvent) {
+			long timeMillis = logEvent.getTimeMillis();
+			if (count++ == 0) {
+				event = logEvent.toImmutable();
+				firstTimeMillis = timeMillis;
+				sampleParameters = new ArrayList<>(MAX_SAMPLES);
+			}
+			lastTimeMillis = timeMillis;
+			if (sampleParameters.size() < MAX_SAMPLES) {
+				Object[] parameters = logEvent.getMessage().getParameters();
+				if (parameters!=null && parameters.length > 0) {
+					String[] sample = new String[parameters.length];
+					for (int i = 0; i < parameters.length; i++)
+						sample[i] = String.valueOf(parameters[i]);
+					sampleParameters.add(sample);
+				}
+			}
+		}
+
+		Summary take() {
+			if (count == 0)
+				return null;
+			Summary summary = new Summary(event, count, firstTimeMillis, lastTimeMillis, Collections.unmodifiableList(sampleParameters));
+			event = null;
+			sampleParameters = null;
+			count = 0;
+			return summary;
+		}
+	}
+
+	private final long windowMs;
+	private final AtomicReferenceArray<Burst> bursts;
+	private final int mask;
+	private final DocSchema schema;
+	private final DocumentFormat format;
+	private final StackTraceCache stackTraceCache;
+	private final boolean ignoreExceptions;
+	private final DocumentSink sink;
+	private final ScheduledThreadPoolExecutor flusher;
+
+	public EventCollapser(String appenderName, long windowMs, int maxKeys, DocSchema schema, DocumentFormat format, StackTraceCache stackTraceCache, boolean ignoreExceptions, DocumentSink sink) {
+		this.windowMs = windowMs;
+		int capacity = Integer.highestOneBit(Math.max(1, maxKeys - 1)) << 1;
+		this.bursts = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+		this.schema = schema;
+		this.format = format;
+		this.stackTraceCache = stackTraceCache;
+		this.ignoreExceptions = ignoreExceptions;
+		this.sink = sink;
+		flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "elastic-appender-collapse-" + appenderName);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, windowMs / 2);
+		flusher.scheduleWithFixedDelay(() -> flush(System.currentTimeMillis()), period, period, TimeUnit.MILLISECONDS);
+	}
+
+	//True if the event is collapsed: it must not be stored
+	public boolean collapse(LogEvent logEvent) {
+		String loggerName = logEvent.getLoggerName();
+		Level level = logEvent.getLevel();
+		String pattern = logEvent.getMessage().getFormat();
+		Throwable error = logEvent.getThrown();
+		long fingerprint = error!=null ? StackTraceCache.fingerprint(error, DocEncoder.MAX_CAUSES_DEPTH) : 0;
+		long hash = hash(loggerName, level, pattern, fingerprint);
+		int slot = (int) hash & mask;
+		long timeMillis = logEvent.getTimeMillis();
+
+		Burst burst = bursts.get(slot);
+		if (burst==null || !burst.matches(hash, loggerName, level, pattern, fingerprint)) {
+			//New key (a colliding key is replaced): this event opens its window
+			Burst opened = new Burst(hash, loggerName, level, pattern, fingerprint);
+			opened.windowEnd = timeMillis + windowMs;
+			Burst replaced = bursts.getAndSet(slot, opened);
+			if (replaced!=null) {
+				Summary summary;
+				synchronized (replaced) {
+					replaced.retired = true;
+					summary = replaced.take();
+				}
+				store(summary);
+			}
+			return false;
+		}
+
+		Summary expired;
+		synchronized (burst) {
+			if (burst.retired)
+				return false;
+			if (timeMillis < burst.windowEnd) {
+				burst.add(logEvent);
+				return true;
+			}
+			//Expired window: its summary is emitted and this event opens a new window
+			expired = burst.take();
+			burst.windowEnd = timeMillis + windowMs;
+		}
+		store(expired);
+		return false;
+	}
+
+	//Summaries of expired windows (all of them when stopping)
+	void flush(long now) {
+		for (int i = 0; i < bursts.length(); i++) {
+			Burst burst = bursts.get(i);
+			if (burst!=null)
+				emit(burst, now);
+		}
+	}
+
+	public void stop() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush(Long.MAX_VALUE);
+	}
+
+	private void emit(Burst burst, long now) {
+		Summary summary;
+		synchronized (burst) {
+			summary = now >= burst.windowEnd ? burst.take() : null;
+		}
+		store(summary);
+	}
+
+	private void store(Summary summary) {
+		if (summary==null)
+			return;
+		try {
+			DocEncoder document = DocEncoder.get(format).encode(summary, schema, stackTraceCache, summary.event.isIncludeLocation(), ignoreExceptions);
+			sink.store(document.getBuffer(), document.getLength(), summary.event);
+		} catch (Exception e) {
+			LOGGER.error("Error logging into Elasticsearch a summary of " + summary.count + " events for logger '" + summary.event.getLoggerName() + "'", e);
+		}
+	}
+
+	private static long hash(String loggerName, Level level, String pattern, long fingerprint) {
+		long hash = 31 * (31 * (31L * Objects.hashCode(loggerName) + level.intLevel()) + Objects.hashCode(pattern)) + fingerprint;
+		//Spreads the hash over the table index bits
+		return hash ^ (hash >>> 32) ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,81 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+//Growable byte array output stream without synchronization and with a reusable internal buffer.
+//Writes beyond the size limit fail (nothing is written) with an exception without stack trace
+final class ReusableOutputStream extends OutputStream {
+
+    private final int initialCapacity;
+    private byte[] buffer;
+    private int size;
+    private int limit = Integer.MAX_VALUE;
+
+    ReusableOutputStream(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        buffer = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (size >= limit)
+            throw new LimitExceededException();
+        ensureCapacity(size + 1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > limit - size)
+            throw new LimitExceededException();
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    //Releases a buffer grown beyond the given capacity by an unusually big document
+    void trim(int maxCapacity) {
+        if (buffer.length > maxCapacity)
+            buffer = new byte[initialCapacity];
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(minCapacity, buffer.length << 1));
+    }
+
+    static final class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException() {
+            super("Size limit exceeded", null);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
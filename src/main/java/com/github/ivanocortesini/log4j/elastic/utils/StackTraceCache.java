@@ -0,0 +1,83 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of encoded error stack traces, keyed by error fingerprint.
+ * A fingerprint identifies an error and its causes chain by exception class and stack frames,
+ * so repeated errors are encoded once and then copied as pre-encoded bytes.
+ */
+public final class StackTraceCache {
+	public static final int DEFAULT_SIZE = 256;
+
+	private final int maxSize;
+	private final Map<Long, byte[][]> stacksByFingerprint;
+
+	public StackTraceCache(int maxSize) {
+		this.maxSize = maxSize;
+		stacksByFingerprint = new LinkedHashMap<Long, byte[][]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[][]> eldest) {
+				return size() > StackTraceCache.this.maxSize;
+			}
+		};
+	}
+
+	//Encoded stack of every error in the causes chain (root error first)
+	synchronized byte[][] get(long fingerprint) {
+		return maxSize > 0 ? stacksByFingerprint.get(fingerprint) : null;
+	}
+
+	synchronized void put(long fingerprint, byte[][] stacks) {
+		if (maxSize > 0)
+			stacksByFingerprint.put(fingerprint, stacks);
+	}
+
+	public synchronized int size() {
+		return stacksByFingerprint.size();
+	}
+
+
+	//Fingerprint utils
+	static long fingerprint(Throwable[] errors, StackTraceElement[][] stacks, int depth) {
+		long hash = 1125899906842597L;
+		for (int i = 0; i < depth; i++) {
+			hash = 31 * hash + errors[i].getClass().getName().hashCode();
+			for (StackTraceElement frame : stacks[i]) {
+				hash = 31 * hash + frame.getClassName().hashCode();
+				hash = 31 * hash + frame.getMethodName().hashCode();
+				hash = 31 * hash + frame.getLineNumber();
+			}
+		}
+		return mix(hash);
+	}
+
+	//Same fingerprint of an encoded error, computed without encoder buffers
+	static long fingerprint(Throwable error, int maxDepth) {
+		Throwable[] errors = new Throwable[maxDepth];
+		StackTraceElement[][] stacks = new StackTraceElement[maxDepth][];
+		int depth = 0;
+		chain:
+		for (Throwable current = error; current!=null && depth < maxDepth; current = current.getCause()) {
+			for (int i = 0; i < depth; i++)
+				if (errors[i]==current)
+					break chain;
+			errors[depth] = current;
+			stacks[depth++] = current.getStackTrace();
+		}
+		return fingerprint(errors, stacks, depth);
+	}
+
+	//MurmurHash3 finalizer: spreads the polynomial hash over all 64 bits
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
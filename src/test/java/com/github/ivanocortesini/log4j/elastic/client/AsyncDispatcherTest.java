@@ -0,0 +1,57 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.OverflowPolicy;
+import org.apache.logging.log4j.Level;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class AsyncDispatcherTest {
+
+    @Test
+    void dropOldestDoesNotBlockOnStalledConsumer() throws InterruptedException {
+        ElasticConfig config = new ElasticConfig();
+        config.setAppenderName("test-drop-oldest");
+        config.setQueueSize(4);
+        config.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        //The consumer stalls on the first document, like while it's waiting for a slow bulk request
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Byte> consumed = Collections.synchronizedList(new ArrayList<>());
+        AsyncDispatcher dispatcher = new AsyncDispatcher(config, (document, sequence, endOfBatch) -> {
+            consumed.add(document.getBuffer()[0]);
+            stalled.countDown();
+            release.await();
+        });
+
+        assertThat(dispatcher.publish(document(0), 0, 1, false, Level.INFO, null)).isTrue();
+        assertThat(stalled.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < 4; i++)
+            assertThat(dispatcher.publish(document(i), 0, 1, false, Level.INFO, null)).isTrue();
+
+        //Ring buffer full: producers return at once, new documents are discarded
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            for (int i = 4; i < 1004; i++)
+                assertThat(dispatcher.publish(document(i), 0, 1, false, Level.INFO, null)).isFalse();
+        });
+        assertThat(dispatcher.getLoadShedder().takeSummary()).containsExactly(entry("INFO", 1000L));
+
+        //Eviction requests not taken by the stalled consumer were withdrawn: buffered documents are all consumed
+        release.countDown();
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+        assertThat(consumed).containsExactly((byte) 0, (byte) 1, (byte) 2, (byte) 3);
+    }
+
+    private static byte[] document(int i) {
+        return new byte[] {(byte) i};
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.*;
+
+class BulkItemFailuresTest {
+
+    @Test
+    void parse() throws IOException {
+        String response = "{\"took\":30,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"_index\":\"test\",\"_type\":\"doc\",\"_id\":\"1\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"status\":201}}," +
+                "{\"index\":{\"_index\":\"test\",\"_type\":\"doc\",\"_id\":\"2\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"}}}," +
+                "{\"index\":{\"_index\":\"test\",\"_type\":\"doc\",\"_id\":\"3\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\",\"caused_by\":{\"type\":\"x\"}}}}" +
+                "]}";
+        BulkItemFailures failures = BulkItemFailures.parse(response.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(failures.size()).isEqualTo(2);
+        assertThat(failures.item(0)).isEqualTo(1);
+        assertThat(failures.status(0)).isEqualTo(429);
+        assertThat(failures.errorType(0)).isEqualTo("es_rejected_execution_exception");
+        assertThat(BulkItemFailures.isRetryable(failures.status(0))).isTrue();
+        assertThat(failures.item(1)).isEqualTo(2);
+        assertThat(failures.errorReason(1)).isEqualTo("failed to parse");
+        assertThat(BulkItemFailures.isRetryable(failures.status(1))).isFalse();
+    }
+
+    @Test
+    void parseWithoutErrors() throws IOException {
+        String response = "{\"took\":3,\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}";
+        assertThat(BulkItemFailures.parse(response.getBytes(StandardCharsets.UTF_8))).isNull();
+    }
+
+    @Test
+    void retryItems() {
+        byte[] action = "{\"index\":{\"_index\":\"test\"}}\n".getBytes(StandardCharsets.UTF_8);
+        BulkBuffer bulk = new BulkBuffer(16, DocumentFormat.JSON);
+        for (int i = 0; i < 100; i++) {
+            byte[] source = ("{\"message\":\"Message n. " + i + "\"}").getBytes(StandardCharsets.UTF_8);
+            bulk.add(action, source, 0, source.length);
+        }
+
+        BulkBuffer retry = new BulkBuffer(16, DocumentFormat.JSON);
+        retry.addItem(bulk, 1);
+        retry.addItem(bulk, 99);
+        assertThat(retry.actions()).isEqualTo(2);
+        assertThat(new String(retry.array(), 0, retry.size(), StandardCharsets.UTF_8)).isEqualTo(
+                "{\"index\":{\"_index\":\"test\"}}\n{\"message\":\"Message n. 1\"}\n" +
+                "{\"index\":{\"_index\":\"test\"}}\n{\"message\":\"Message n. 99\"}\n");
+
+        //Spooled bodies are split into the same items
+        BulkBuffer wrapped = BulkBuffer.wrap(Arrays.copyOf(bulk.array(), bulk.size()));
+        assertThat(wrapped.actions()).isEqualTo(100);
+        assertThat(wrapped.itemStart(99)).isEqualTo(bulk.itemStart(99));
+        assertThat(wrapped.sourceStart(99)).isEqualTo(bulk.itemStart(99) + action.length);
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class DiskSpoolTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayAfterRestart() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        for (int i = 0; i < 3; i++)
+            assertThat(spool.append(record(i), 0, record(i).length)).isTrue();
+        assertThat(spool.peek()).isEqualTo(record(0));
+        spool.commit();
+        //Peeked but not committed: it's replayed again
+        assertThat(spool.peek()).isEqualTo(record(1));
+        spool.close();
+
+        spool = new DiskSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        for (int i = 1; i < 3; i++) {
+            assertThat(spool.peek()).isEqualTo(record(i));
+            spool.commit();
+        }
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    void recoverOwnSegmentsOnly() throws IOException {
+        DiskSpool other = new DiskSpool(directory, "test-audit", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        assertThat(other.append(record(1), 0, record(1).length)).isTrue();
+        other.close();
+
+        DiskSpool spool = new DiskSpool(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+        spool.close();
+
+        other = new DiskSpool(directory, "test-audit", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        assertThat(other.peek()).isEqualTo(record(1));
+        other.close();
+    }
+
+    @Test
+    void sharedByClientsWithSameName() throws IOException {
+        //Reconfiguration: the new client opens the spool before the old one closes it
+        DiskSpool oldSpool = DiskSpool.open(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        DiskSpool newSpool = DiskSpool.open(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        assertThat(newSpool).isSameAs(oldSpool);
+        assertThat(oldSpool.append(record(0), 0, record(0).length)).isTrue();
+        oldSpool.close();
+
+        assertThat(newSpool.append(record(1), 0, record(1).length)).isTrue();
+        assertThat(newSpool.peek()).isEqualTo(record(0));
+        newSpool.close();
+
+        DiskSpool reopened = DiskSpool.open(directory, "test", SEGMENT_SIZE, 4 * SEGMENT_SIZE);
+        assertThat(reopened).isNotSameAs(newSpool);
+        assertThat(reopened.peek()).isEqualTo(record(0));
+        reopened.close();
+    }
+
+    @Test
+    void segmentsAndMaxSize() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, "test", SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+        byte[] bulk = new byte[SEGMENT_SIZE / 3];
+        assertThat(spool.append(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE)).isFalse();
+        for (int i = 0; i < 4; i++)
+            assertThat(spool.append(bulk, 0, bulk.length)).isTrue();
+        assertThat(spool.segments()).isEqualTo(2);
+        //Max size reached: new bulk requests are rejected
+        assertThat(spool.append(bulk, 0, bulk.length)).isFalse();
+
+        //Fully replayed segments are deleted
+        for (int i = 0; i < 3; i++) {
+            assertThat(spool.peek()).hasSize(bulk.length);
+            spool.commit();
+        }
+        assertThat(spool.peek()).hasSize(bulk.length);
+        assertThat(spool.segments()).isEqualTo(1);
+        assertThat(segmentFiles()).isEqualTo(1);
+        spool.close();
+    }
+
+    @Test
+    void discardIncompleteRecord() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, "test", SEGMENT_SIZE, SEGMENT_SIZE);
+        spool.append(record(0), 0, record(0).length);
+        spool.append(record(1), 0, record(1).length);
+        spool.close();
+
+        //Corrupts the last record body
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(12 + 8 + record(0).length + 8);
+            file.write('X');
+        }
+
+        spool = new DiskSpool(directory, "test", SEGMENT_SIZE, SEGMENT_SIZE);
+        assertThat(spool.peek()).isEqualTo(record(0));
+        spool.commit();
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] record(int n) {
+        return ("{\"index\":{\"_index\":\"test\"}}\n{\"message\":\"Message n. " + n + "\"}\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.http.entity.ContentType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class GzipEntityTest {
+
+    @Test
+    void writeTo() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            body.append("{\"index\":{\"_index\":\"test\"}}\n{\"message\":\"Message n. ").append(i).append("\"}\n");
+        byte[] source = body.toString().getBytes(StandardCharsets.UTF_8);
+
+        GzipEntity entity = new GzipEntity(source, 0, source.length, 6, BulkBuffer.NDJSON);
+        assertThat(entity.getContentEncoding().getValue()).isEqualTo("gzip");
+
+        //Repeatable: every write produces the same compressed body
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            entity.writeTo(compressed);
+            assertThat(compressed.size()).isLessThan(source.length / 5);
+            assertThat(decompress(compressed.toByteArray())).isEqualTo(source);
+        }
+    }
+
+    @Test
+    void writeRegion() throws IOException {
+        byte[] source = "xx{\"message\":\"single\"}\nyy".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new GzipEntity(source, 2, source.length - 4, 1, ContentType.APPLICATION_JSON).writeTo(compressed);
+        assertThat(new String(decompress(compressed.toByteArray()), StandardCharsets.UTF_8)).isEqualTo("{\"message\":\"single\"}\n");
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] chunk = new byte[1024];
+            for (int read; (read = in.read(chunk)) >= 0; )
+                out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+class IndexNameResolverTest {
+
+    @Test
+    void resolveDailyIndex() throws IOException {
+        ElasticConfig config = new ElasticConfig();
+        config.setIndexName("app-logs-{yyyy.MM.dd}");
+        List<String> newIndices = new ArrayList<>();
+        IndexNameResolver resolver = new IndexNameResolver(config, newIndices::add);
+
+        long morning = Instant.parse("2019-10-01T08:00:00Z").toEpochMilli();
+        IndexNameResolver.Bucket bucket = resolver.resolve(morning);
+        assertThat(bucket.indexName).isEqualTo("app-logs-2019.10.01");
+        assertThat(new String(bucket.actionLine, StandardCharsets.UTF_8))
+                .isEqualTo("{\"index\":{\"_index\":\"app-logs-2019.10.01\",\"_type\":\"doc\"}}\n");
+        //Same bucket: nothing is formatted again
+        assertThat(resolver.resolve(Instant.parse("2019-10-01T23:59:59.999Z").toEpochMilli())).isSameAs(bucket);
+        assertThat(resolver.resolve(Instant.parse("2019-10-02T00:00:00Z").toEpochMilli()).indexName).isEqualTo("app-logs-2019.10.02");
+
+        assertThat(newIndices).endsWith("app-logs-2019.10.01", "app-logs-2019.10.02");
+    }
+
+    @Test
+    void resolveHourlyIndexWithQuotes() throws IOException {
+        ElasticConfig config = new ElasticConfig();
+        config.setIndexName("o'logs-{yyyy.MM.dd-HH}");
+        config.setOpType("create");
+        IndexNameResolver resolver = new IndexNameResolver(config, index -> {});
+
+        IndexNameResolver.Bucket bucket = resolver.resolve(Instant.parse("2019-10-01T08:30:00Z").toEpochMilli());
+        assertThat(bucket.indexName).isEqualTo("o'logs-2019.10.01-08");
+        assertThat(bucket.end - bucket.start).isEqualTo(3600_000L);
+        assertThat(new String(bucket.actionLine, StandardCharsets.UTF_8)).startsWith("{\"create\":");
+    }
+
+    @Test
+    void resolveFixedIndex() throws IOException {
+        ElasticConfig config = new ElasticConfig();
+        config.setIndexName("app-logs");
+        IndexNameResolver resolver = new IndexNameResolver(config, index -> {});
+
+        assertThat(resolver.resolve(0).indexName).isEqualTo("app-logs");
+        assertThat(resolver.resolve(System.currentTimeMillis())).isSameAs(resolver.getCurrent());
+    }
+
+    @Test
+    void invalidDatePattern() {
+        ElasticConfig config = new ElasticConfig();
+        config.setIndexName("app-logs-{yyyy.MM.dd-bb}");
+        assertThatThrownBy(() -> new IndexNameResolver(config, index -> {}))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("app-logs-{yyyy.MM.dd-bb}");
+    }
+}
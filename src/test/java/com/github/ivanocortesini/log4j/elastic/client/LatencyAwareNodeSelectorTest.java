@@ -0,0 +1,62 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+class LatencyAwareNodeSelectorTest {
+    private static final Node FAST = new Node(new HttpHost("fast", 9200));
+    private static final Node HEALTHY = new Node(new HttpHost("healthy", 9200));
+    private static final Node SLOW = new Node(new HttpHost("slow", 9200));
+    private static final Node MASTER = new Node(new HttpHost("master", 9200), null, "master", "7.3.2", new Node.Roles(true, false, false), null);
+
+    @Test
+    void skipSlowNodes() {
+        LatencyAwareNodeSelector selector = new LatencyAwareNodeSelector();
+        for (int i = 0; i < 10; i++) {
+            selector.recordLatency(FAST.getHost(), 10_000_000);
+            selector.recordLatency(HEALTHY.getHost(), 12_000_000);
+            selector.recordLatency(SLOW.getHost(), 50_000_000);
+        }
+        assertThat(select(selector, FAST, HEALTHY, SLOW, MASTER)).containsExactly(FAST, HEALTHY);
+
+        //Recent failures increase the node score
+        selector.recordFailure(HEALTHY.getHost());
+        assertThat(select(selector, FAST, HEALTHY, SLOW)).containsExactly(FAST);
+    }
+
+    @Test
+    void keepUnknownNodes() {
+        LatencyAwareNodeSelector selector = new LatencyAwareNodeSelector();
+        assertThat(select(selector, FAST, SLOW)).containsExactly(FAST, SLOW);
+
+        //Only failing nodes: none is skipped
+        selector.recordFailure(FAST.getHost());
+        selector.recordFailure(SLOW.getHost());
+        assertThat(select(selector, FAST, SLOW)).containsExactly(FAST, SLOW);
+        assertThat(select(selector, MASTER)).containsExactly(MASTER);
+    }
+
+    @Test
+    void keepMeasuredNodesWithNewNodes() {
+        LatencyAwareNodeSelector selector = new LatencyAwareNodeSelector();
+        for (int i = 0; i < 10; i++) {
+            selector.recordLatency(FAST.getHost(), 10_000_000);
+            selector.recordLatency(SLOW.getHost(), 50_000_000);
+        }
+        //A new (sniffed) node doesn't set the best score: measured nodes are still selected by latency
+        assertThat(select(selector, FAST, HEALTHY, SLOW)).containsExactly(FAST, HEALTHY);
+    }
+
+    private static List<Node> select(LatencyAwareNodeSelector selector, Node... nodes) {
+        List<Node> selected = new ArrayList<>(Arrays.asList(nodes));
+        selector.select(selected);
+        return selected;
+    }
+}
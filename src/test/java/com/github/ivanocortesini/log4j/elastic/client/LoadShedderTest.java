@@ -0,0 +1,49 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.OverflowPolicy;
+import org.apache.logging.log4j.Level;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+class LoadShedderTest {
+
+    @Test
+    void shedByLevel() {
+        ElasticConfig config = new ElasticConfig();
+        config.setOverflowPolicy(OverflowPolicy.parse("shedByLevel"));
+        LoadShedder loadShedder = new LoadShedder(config, 100);
+
+        assertThat(loadShedder.admit(Level.DEBUG, 49)).isTrue();
+        assertThat(loadShedder.admit(Level.DEBUG, 50)).isFalse();
+        assertThat(loadShedder.admit(Level.INFO, 50)).isTrue();
+        assertThat(loadShedder.admit(Level.INFO, 80)).isFalse();
+        assertThat(loadShedder.admit(Level.WARN, 100)).isTrue();
+        assertThat(loadShedder.admit(Level.ERROR, 100)).isTrue();
+        assertThat(loadShedder.admit(null, 100)).isTrue();
+
+        loadShedder.shed(Level.DEBUG);
+        loadShedder.shed(Level.INFO);
+        loadShedder.shed(Level.INFO);
+        assertThat(loadShedder.isPressureOver(60)).isFalse();
+        assertThat(loadShedder.isPressureOver(10)).isTrue();
+        assertThat(loadShedder.takeSummary()).containsExactly(entry("INFO", 2L), entry("DEBUG", 1L));
+        assertThat(loadShedder.isPressureOver(10)).isFalse();
+    }
+
+    @Test
+    void dropOldest() {
+        ElasticConfig config = new ElasticConfig();
+        config.setOverflowPolicy(OverflowPolicy.parse("drop-oldest"));
+        LoadShedder loadShedder = new LoadShedder(config, 8);
+
+        assertThat(loadShedder.getPolicy()).isEqualTo(OverflowPolicy.DROP_OLDEST);
+        assertThat(loadShedder.dropOldest()).isFalse();
+        loadShedder.requestDropOldest();
+        loadShedder.requestDropOldest();
+        assertThat(loadShedder.dropOldest()).isTrue();
+        assertThat(loadShedder.dropOldest()).isTrue();
+        assertThat(loadShedder.dropOldest()).isFalse();
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.ivanocortesini.log4j.elastic.client;
+
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.*;
+
+class RestClientRegistryTest {
+
+    @Test
+    void shareByClusterAndCredentials() throws IOException {
+        int initialSize = RestClientRegistry.size();
+        RestClient first = RestClientRegistry.acquire(config("first-index", "usr"));
+        RestClient second = RestClientRegistry.acquire(config("second-index", "usr"));
+        RestClient other = RestClientRegistry.acquire(config("first-index", "other-usr"));
+
+        assertThat(second).isSameAs(first);
+        assertThat(other).isNotSameAs(first);
+        assertThat(RestClientRegistry.size()).isEqualTo(initialSize + 2);
+
+        //Closed when its last reference is released
+        RestClientRegistry.release(first);
+        assertThat(RestClientRegistry.size()).isEqualTo(initialSize + 2);
+        RestClientRegistry.release(second);
+        assertThat(RestClientRegistry.size()).isEqualTo(initialSize + 1);
+        RestClientRegistry.release(other);
+        assertThat(RestClientRegistry.size()).isEqualTo(initialSize);
+    }
+
+    private static ElasticConfig config(String indexName, String userName) {
+        return new ElasticConfig(indexName, indexName, true, 0, userName, "psw",
+                Collections.singletonList(new ElasticHost("http", "localhost", 9200)));
+    }
+}
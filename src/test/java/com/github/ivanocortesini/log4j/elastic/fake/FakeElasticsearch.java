@@ -0,0 +1,349 @@
+package com.github.ivanocortesini.log4j.elastic.fake;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.metrics.Histogram;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process fake of the Elasticsearch REST API used by the appender: index existence check and creation,
+ * "_bulk" requests (with per item responses) and single document requests. Faults can be injected at any time:
+ * response latency, whole bulk requests rejected (429), items rejected (429) or failed (400 mapping error)
+ * and connections closed without response. Documents aren't stored: they're counted by index and
+ * their end-to-end lag (arrival time - "timestamp" field) is recorded.
+ * Like Elasticsearch, Smile requests are answered with Smile responses.
+ */
+public final class FakeElasticsearch implements AutoCloseable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random(42);
+
+    private final Set<String> indices = ConcurrentHashMap.newKeySet();
+    private final Map<String, LongAdder> documentsByIndex = new ConcurrentHashMap<>();
+    private final LongAdder bulkRequests = new LongAdder();
+    private final LongAdder rejectedBulkRequests = new LongAdder();
+    private final LongAdder rejectedItems = new LongAdder();
+    private final LongAdder failedItems = new LongAdder();
+    private final LongAdder resetConnections = new LongAdder();
+    private final Histogram lagMillis = new Histogram();
+
+    private volatile long latencyMs;
+    private volatile double bulkRejectRate;
+    private volatile double itemRejectRate;
+    private volatile double itemFailureRate;
+    private volatile double connectionResetRate;
+    private volatile boolean unavailable;
+    //Stored messages in arrival order, by index (only if recording is enabled)
+    private final Map<String, List<String>> messagesByIndex = new ConcurrentHashMap<>();
+    private volatile boolean recordMessages;
+
+    public FakeElasticsearch() throws IOException {
+        this(16);
+    }
+
+    public FakeElasticsearch(int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fake-elasticsearch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    //Fault injection
+    public FakeElasticsearch setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+    public FakeElasticsearch setBulkRejectRate(double bulkRejectRate) {
+        this.bulkRejectRate = bulkRejectRate;
+        return this;
+    }
+    public FakeElasticsearch setItemRejectRate(double itemRejectRate) {
+        this.itemRejectRate = itemRejectRate;
+        return this;
+    }
+    public FakeElasticsearch setItemFailureRate(double itemFailureRate) {
+        this.itemFailureRate = itemFailureRate;
+        return this;
+    }
+    public FakeElasticsearch setConnectionResetRate(double connectionResetRate) {
+        this.connectionResetRate = connectionResetRate;
+        return this;
+    }
+    //Every request gets a 503 response
+    public FakeElasticsearch setUnavailable(boolean unavailable) {
+        this.unavailable = unavailable;
+        return this;
+    }
+    public FakeElasticsearch setRecordMessages(boolean recordMessages) {
+        this.recordMessages = recordMessages;
+        return this;
+    }
+
+
+    //Statistics
+    public long getDocuments(String index) {
+        LongAdder documents = documentsByIndex.get(index);
+        return documents!=null ? documents.sum() : 0;
+    }
+    public long getDocuments() {
+        return documentsByIndex.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+    public List<String> getMessages(String index) {
+        List<String> messages = messagesByIndex.get(index);
+        return messages!=null ? new ArrayList<>(messages) : Collections.emptyList();
+    }
+    public boolean hasIndex(String index) {
+        return indices.contains(index);
+    }
+    public long getBulkRequests() {
+        return bulkRequests.sum();
+    }
+    public long getRejectedBulkRequests() {
+        return rejectedBulkRequests.sum();
+    }
+    public long getRejectedItems() {
+        return rejectedItems.sum();
+    }
+    public long getFailedItems() {
+        return failedItems.sum();
+    }
+    public long getResetConnections() {
+        return resetConnections.sum();
+    }
+    public Histogram getLagMillis() {
+        return lagMillis;
+    }
+
+
+    //Request handling
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (chance(connectionResetRate)) {
+            //No response: the connection is closed
+            resetConnections.increment();
+            return;
+        }
+        if (latencyMs > 0)
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        if (unavailable) {
+            respond(exchange, 503, "{\"error\":{\"type\":\"master_not_discovered_exception\",\"reason\":null},\"status\":503}");
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+        if ("POST".equals(method) && path.length == 1 && "_bulk".equals(path[0]))
+            bulk(exchange, body);
+        else if ("HEAD".equals(method) && path.length == 1)
+            exchange.sendResponseHeaders(indices.contains(path[0]) ? 200 : 404, -1);
+        else if ("PUT".equals(method) && path.length == 1) {
+            if (indices.add(path[0]))
+                respond(exchange, 200, "{\"acknowledged\":true,\"index\":\"" + path[0] + "\"}");
+            else
+                respond(exchange, 400, "{\"error\":{\"type\":\"resource_already_exists_exception\",\"reason\":\"index [" + path[0] + "] already exists\"},\"status\":400}");
+        } else if ("POST".equals(method) && path.length == 2) {
+            store(path[0], body, 0, body.length, DocumentFormat.detect(body, 0, body.length));
+            respond(exchange, 201, "{\"_index\":\"" + path[0] + "\",\"result\":\"created\"}");
+        } else
+            respond(exchange, 400, "{\"error\":{\"type\":\"illegal_argument_exception\",\"reason\":\"unsupported request\"},\"status\":400}");
+    }
+
+    private void bulk(HttpExchange exchange, byte[] body) throws IOException {
+        bulkRequests.increment();
+        if (chance(bulkRejectRate)) {
+            rejectedBulkRequests.increment();
+            respond(exchange, 429, "{\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"},\"status\":429}");
+            return;
+        }
+        DocumentFormat format = DocumentFormat.detect(body, 0, body.length);
+        byte separator = format.getSeparator();
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        for (int lineStart = 0; lineStart < body.length; ) {
+            int actionEnd = lineEnd(body, lineStart, separator);
+            int sourceEnd = lineEnd(body, actionEnd + 1, separator);
+            String[] action = parseAction(body, lineStart, actionEnd - lineStart, format);
+            items.append(items.length() > 0 ? "," : "").append("{\"").append(action[0]).append("\":{\"_index\":\"").append(action[1]).append("\",");
+            if (chance(itemRejectRate)) {
+                rejectedItems.increment();
+                errors = true;
+                items.append("\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution of bulk item\"}}}");
+            } else if (chance(itemFailureRate)) {
+                failedItems.increment();
+                errors = true;
+                items.append("\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}");
+            } else {
+                store(action[1], body, actionEnd + 1, sourceEnd - actionEnd - 1, format);
+                items.append("\"result\":\"created\",\"status\":201}}");
+            }
+            lineStart = sourceEnd + 1;
+        }
+        String response = "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}";
+        if (format == DocumentFormat.SMILE)
+            respondSmile(exchange, 200, response);
+        else
+            respond(exchange, 200, response);
+    }
+
+    private void store(String index, byte[] source, int offset, int length, DocumentFormat format) throws IOException {
+        indices.add(index);
+        documentsByIndex.computeIfAbsent(index, i -> new LongAdder()).increment();
+        if (recordMessages)
+            messagesByIndex.computeIfAbsent(index, i -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(field(source, offset, length, format, "message"));
+        String timestamp = field(source, offset, length, format, "timestamp");
+        if (timestamp!=null)
+            try {
+                lagMillis.record(System.currentTimeMillis() - Instant.parse(timestamp).toEpochMilli());
+            } catch (DateTimeParseException e) {
+                //Not an appender document
+            }
+    }
+
+
+    //Parsing utils
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int read; (read = in.read(buffer)) >= 0; )
+            body.write(buffer, 0, read);
+        return body.toByteArray();
+    }
+
+    private static int lineEnd(byte[] body, int start, byte separator) {
+        int end = start;
+        while (end < body.length && body[end] != separator)
+            end++;
+        return end;
+    }
+
+    //Operation and index of an action line: {"index":{"_index":"...",...}}
+    private static String[] parseAction(byte[] body, int offset, int length, DocumentFormat format) throws IOException {
+        String[] action = {"index", null};
+        try (JsonParser parser = factory(format).createParser(body, offset, length)) {
+            parser.nextToken();
+            if (parser.nextToken() == JsonToken.FIELD_NAME) {
+                action[0] = parser.getCurrentName();
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("_index".equals(field))
+                        action[1] = parser.getText();
+                    else
+                        parser.skipChildren();
+                }
+            }
+        }
+        return action;
+    }
+
+    private static String field(byte[] source, int offset, int length, DocumentFormat format, String name) throws IOException {
+        try (JsonParser parser = factory(format).createParser(source, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (name.equals(field))
+                    return parser.getText();
+                parser.skipChildren();
+            }
+        }
+        return null;
+    }
+
+    private static JsonFactory factory(DocumentFormat format) {
+        return format == DocumentFormat.SMILE ? SMILE_FACTORY : JSON_FACTORY;
+    }
+
+    private static void respondSmile(HttpExchange exchange, int status, String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length());
+        try (JsonParser parser = JSON_FACTORY.createParser(body);
+             JsonGenerator generator = SMILE_FACTORY.createGenerator(bytes)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/smile");
+        exchange.sendResponseHeaders(status, bytes.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            bytes.writeTo(out);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private boolean chance(double rate) {
+        if (rate <= 0)
+            return false;
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+}
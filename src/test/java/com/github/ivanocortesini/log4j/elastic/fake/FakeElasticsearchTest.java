@@ -0,0 +1,325 @@
+package com.github.ivanocortesini.log4j.elastic.fake;
+
+import com.github.ivanocortesini.log4j.elastic.appender.ElasticAppender;
+import com.github.ivanocortesini.log4j.elastic.client.ElasticClient;
+import com.github.ivanocortesini.log4j.elastic.config.BatchMode;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticConfig;
+import com.github.ivanocortesini.log4j.elastic.config.ElasticHost;
+import com.github.ivanocortesini.log4j.elastic.config.IndexRoute;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class FakeElasticsearchTest {
+
+    @TempDir
+    Path spoolDirectory;
+
+    @Test
+    void retryRejectedItems() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setItemRejectRate(0.3).setBulkRejectRate(0.2)) {
+            ElasticClient client = ElasticClient.getInstance(config(elasticsearch, "fake-retry-appender"));
+            for (int i = 0; i < 200; i++)
+                client.storeJsonDocument("{\"message\":\"document " + i + "\"}", i % 20 == 19);
+            client.shutdown();
+
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(200);
+            assertThat(elasticsearch.getRejectedItems()).isPositive();
+            assertThat(elasticsearch.hasIndex("fake-index")).isTrue();
+            assertThat(client.getMetrics().getRetries()).isPositive();
+            assertThat(client.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    @Test
+    void deadLetterFailedItems() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setItemFailureRate(0.25)) {
+            ElasticConfig config = config(elasticsearch, "fake-dead-letter-appender");
+            config.setDeadLetterIndex("fake-dead-letters");
+            ElasticClient client = ElasticClient.getInstance(config);
+            for (int i = 0; i < 100; i++)
+                client.storeJsonDocument("{\"message\":\"document " + i + "\"}", i % 10 == 9);
+            client.shutdown();
+
+            //Dead letter documents can be rejected too: they're lost
+            assertThat(elasticsearch.getFailedItems()).isPositive();
+            assertThat(elasticsearch.getDocuments("fake-dead-letters")).isPositive();
+            assertThat(elasticsearch.getDocuments("fake-index") + elasticsearch.getDocuments("fake-dead-letters")
+                    + client.getMetrics().getEventsFailed()).isEqualTo(100);
+        }
+    }
+
+    @Test
+    void smileBulkRequests() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setItemFailureRate(0.2)) {
+            ElasticConfig config = config(elasticsearch, "fake-smile-appender");
+            config.setContentType(DocumentFormat.SMILE);
+            config.setDeadLetterIndex("fake-smile-dead-letters");
+            ElasticClient client = ElasticClient.getInstance(config);
+            for (int i = 0; i < 100; i++)
+                client.storeJsonDocument("{\"message\":\"document " + i + "\",\"timestamp\":\"2019-10-01T10:00:00.000Z\"}", i % 10 == 9);
+            client.shutdown();
+
+            assertThat(elasticsearch.getFailedItems()).isPositive();
+            assertThat(elasticsearch.getDocuments("fake-smile-dead-letters")).isPositive();
+            assertThat(elasticsearch.getDocuments("fake-index") + elasticsearch.getDocuments("fake-smile-dead-letters")
+                    + client.getMetrics().getEventsFailed()).isEqualTo(100);
+            //Smile documents are readable: every one has a timestamp
+            assertThat(elasticsearch.getLagMillis().getCount()).isEqualTo(elasticsearch.getDocuments("fake-index") + elasticsearch.getDocuments("fake-smile-dead-letters"));
+        }
+    }
+
+    @Test
+    void routeEventsToIndices() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            ElasticConfig config = config(elasticsearch, "fake-routing-appender");
+            config.setIndexRoutes(Arrays.asList(
+                    IndexRoute.createRoute("fake-errors", null, "ERROR,FATAL", null, null, null),
+                    IndexRoute.createRoute("fake-audit", "com.acme.audit", null, "AUDIT", null, null),
+                    IndexRoute.createRoute("fake-tenant-a", null, null, null, "tenant", "a")));
+            config.setMaxBatchActions(100);
+            ElasticClient client = ElasticClient.getInstance(config);
+            byte[] document = "{\"message\":\"routed\"}".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 100; i++) {
+                SortedArrayStringMap contextData = new SortedArrayStringMap();
+                contextData.putValue("tenant", i % 2 == 0 ? "a" : "b");
+                LogEvent event = Log4jLogEvent.newBuilder()
+                        .setLoggerName(i % 5 == 0 ? "com.acme.audit.Login" : "com.acme.Service")
+                        .setMarker(i % 10 == 0 ? MarkerManager.getMarker("AUDIT") : null)
+                        .setLevel(i % 4 == 0 ? Level.ERROR : Level.INFO)
+                        .setContextData(contextData)
+                        .setMessage(new SimpleMessage("routed"))
+                        .setTimeMillis(System.currentTimeMillis())
+                        .build();
+                client.storeDocument(document, 0, document.length, i == 99, event);
+            }
+            client.shutdown();
+
+            //Errors first (25), then audit events not yet routed (i % 20 == 10), then tenant "a" events left
+            assertThat(elasticsearch.getDocuments("fake-errors")).isEqualTo(25);
+            assertThat(elasticsearch.getDocuments("fake-audit")).isEqualTo(5);
+            assertThat(elasticsearch.getDocuments("fake-tenant-a")).isEqualTo(20);
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(50);
+            //Every index in the same bulk request
+            assertThat(elasticsearch.getBulkRequests()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void stripedProducers() throws Exception {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            ElasticConfig config = config(elasticsearch, "fake-striped-appender");
+            config.setBufferStripes(4);
+            config.setMaxBatchActions(50);
+            config.setMaxInFlightBulks(4);
+            ElasticClient client = ElasticClient.getInstance(config);
+            ExecutorService producers = Executors.newFixedThreadPool(8);
+            try {
+                List<CompletableFuture<Void>> results = IntStream.range(0, 8).mapToObj(producer -> CompletableFuture.runAsync(() -> {
+                    try {
+                        for (int i = 0; i < 500; i++)
+                            client.storeJsonDocument("{\"message\":\"producer " + producer + " document " + i + "\"}", false);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, producers)).collect(Collectors.toList());
+                CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get();
+            } finally {
+                producers.shutdown();
+            }
+            client.shutdown();
+
+            //Open bulk requests of every stripe are sent on shutdown
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(4000);
+            assertThat(client.getMetrics().getEventsFailed()).isZero();
+            assertThat(client.getMetrics().getBufferDepth()).isZero();
+        }
+    }
+
+    @Test
+    void multiLineJsonDocuments() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            ElasticClient client = ElasticClient.getInstance(config(elasticsearch, "fake-multi-line-appender"));
+            client.storeJsonDocument("{\n  \"message\" : \"first\",\r\n  \"count\" : 1\n}", false);
+            client.storeJsonDocument("{\"message\":\"second\"}", true);
+            client.shutdown();
+
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(2);
+            assertThat(client.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    @Test
+    void spoolDuringOutage() throws Exception {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setUnavailable(true).setRecordMessages(true)) {
+            ElasticConfig config = config(elasticsearch, "fake-spool-appender");
+            config.setSpoolDirectory(spoolDirectory.toString());
+            config.setSpoolReplayRate(100);
+            //Failed requests complete quickly: this test is about outages, not slow clusters
+            config.setSpoolWaitMs(10000);
+            ElasticClient client = ElasticClient.getInstance(config);
+            List<String> messages = IntStream.range(0, 100).mapToObj(i -> "document " + i).collect(Collectors.toList());
+            for (int i = 0; i < messages.size(); i++)
+                client.storeJsonDocument("{\"message\":\"" + messages.get(i) + "\"}", i % 10 == 9);
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertThat(elasticsearch.getDocuments()).isZero();
+
+            //Cluster back: spooled bulk requests are replayed in order
+            elasticsearch.setUnavailable(false);
+            awaitDocuments(elasticsearch, "fake-index", messages.size());
+            client.shutdown();
+
+            assertThat(elasticsearch.getMessages("fake-index")).isEqualTo(messages);
+            assertThat(client.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    @Test
+    void spoolOnSlowCluster() throws Exception {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setLatencyMs(1000)) {
+            ElasticConfig config = config(elasticsearch, "fake-slow-spool-appender");
+            config.setSpoolDirectory(spoolDirectory.toString());
+            config.setSpoolWaitMs(50);
+            config.setCreateIndex(false);
+            ElasticClient client = ElasticClient.getInstance(config);
+            client.storeJsonDocument("{\"message\":\"first\"}", true);
+            //The first bulk request is pending: the second one is spooled after "spoolWaitMs", not after the socket timeout
+            long start = System.nanoTime();
+            client.storeJsonDocument("{\"message\":\"second\"}", true);
+            assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(500));
+
+            awaitDocuments(elasticsearch, "fake-index", 2);
+            client.shutdown();
+            assertThat(client.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    @Test
+    void boundStartupDocuments() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setLatencyMs(1000)) {
+            ElasticConfig config = config(elasticsearch, "fake-slow-startup-appender");
+            config.setMaxBatchActions(10);
+            config.setMaxBatchBytes(1000);
+            ElasticClient client = ElasticClient.getInstance(config);
+            //The index check takes a second: documents are held up to 4 x "maxBatchBytes", the others are lost
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++)
+                client.storeJsonDocument("{\"message\":\"document " + i + "\"}", false);
+            assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(500));
+            client.shutdown();
+
+            long stored = elasticsearch.getDocuments("fake-index");
+            assertThat(stored).isPositive().isLessThan(100);
+            assertThat(stored + client.getMetrics().getEventsFailed()).isEqualTo(100);
+        }
+    }
+
+    @Test
+    void bufferBytesGauge() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch().setLatencyMs(500)) {
+            ElasticConfig config = config(elasticsearch, "fake-buffer-bytes-appender");
+            config.setCreateIndex(false);
+            ElasticClient client = ElasticClient.getInstance(config);
+            client.storeJsonDocument("{\"message\":\"in flight\"}", true);
+            long inFlightBytes = client.getMetrics().getBufferBytes();
+            assertThat(inFlightBytes).isGreaterThan("{\"message\":\"in flight\"}".length());
+            client.storeJsonDocument("{\"message\":\"buffered\"}", false);
+            //In-flight and open bulk requests
+            assertThat(client.getMetrics().getBufferBytes()).isGreaterThan(inFlightBytes);
+            client.shutdown();
+
+            assertThat(client.getMetrics().getBufferBytes()).isZero();
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(2);
+        }
+    }
+
+    private static void awaitDocuments(FakeElasticsearch elasticsearch, String index, long documents) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (elasticsearch.getDocuments(index) < documents && System.nanoTime() < deadline)
+            TimeUnit.MILLISECONDS.sleep(10);
+        assertThat(elasticsearch.getDocuments(index)).isEqualTo(documents);
+    }
+
+    @Test
+    void reconfigureAppender() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            //Log4j reconfiguration: the new appender starts before the old one with the same name stops
+            ElasticAppender oldAppender = new ElasticAppender("fake-reconfigured-appender", config(elasticsearch, "fake-reconfigured-appender"), null, null, true);
+            oldAppender.start();
+            oldAppender.append(event("before reconfiguration"));
+            ElasticAppender newAppender = new ElasticAppender("fake-reconfigured-appender", config(elasticsearch, "fake-reconfigured-appender"), null, null, true);
+            newAppender.start();
+            oldAppender.stop();
+            newAppender.append(event("after reconfiguration"));
+            newAppender.stop();
+
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(2);
+            assertThat(newAppender.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    @Test
+    void reconfigureContentType() throws IOException {
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            ElasticAppender oldAppender = new ElasticAppender("fake-reconfigured-format", config(elasticsearch, "fake-reconfigured-format"), null, null, true);
+            oldAppender.start();
+            oldAppender.append(event("before reconfiguration"));
+            //Changed configuration: the new appender gets its own client, documents keep the format of their bulk requests
+            ElasticConfig smileConfig = config(elasticsearch, "fake-reconfigured-format");
+            smileConfig.setContentType(DocumentFormat.SMILE);
+            ElasticAppender newAppender = new ElasticAppender("fake-reconfigured-format", smileConfig, null, null, true);
+            newAppender.start();
+            newAppender.append(event("after reconfiguration"));
+            oldAppender.stop();
+            newAppender.append(event("after old appender stop"));
+            newAppender.stop();
+
+            assertThat(newAppender.getMetrics()).isNotSameAs(oldAppender.getMetrics());
+            assertThat(elasticsearch.getDocuments("fake-index")).isEqualTo(3);
+            assertThat(oldAppender.getMetrics().getEventsFailed()).isZero();
+            assertThat(newAppender.getMetrics().getEventsFailed()).isZero();
+        }
+    }
+
+    private static LogEvent event(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.acme.Service")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    private static ElasticConfig config(FakeElasticsearch elasticsearch, String appenderName) throws IOException {
+        ElasticConfig config = new ElasticConfig(appenderName, "fake-index", true, 0, null, null,
+                Collections.singletonList(new ElasticHost(elasticsearch.getUrl())));
+        config.setBatchMode(BatchMode.ALWAYS);
+        config.setMaxRetries(20);
+        config.setRetryBackoffMs(1);
+        config.setMaxRetryBackoffMs(10);
+        config.setJmx(false);
+        return config;
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.ivanocortesini.log4j.elastic.fake;
+
+import com.github.ivanocortesini.log4j.elastic.appender.ElasticAppender;
+import com.github.ivanocortesini.log4j.elastic.metrics.AppenderMetrics;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load and soak test driver: producer threads log at a fixed total rate through a Log4j configuration
+ * with an "Elastic" appender connected to a {@link FakeElasticsearch}. Produced and delivered documents,
+ * appender drops and failures, end-to-end lag and heap usage are reported periodically.
+ */
+public final class LoadDriver {
+    public static final String APPENDER_NAME = "load-elastic-appender";
+    public static final String INDEX = "load-index";
+
+    private final FakeElasticsearch elasticsearch;
+    private final Map<String, String> appenderAttributes = new LinkedHashMap<>();
+    private final int eventsPerSecond;
+    private final int threads;
+
+    private final LongAdder produced = new LongAdder();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private volatile boolean running;
+    private long maxHeapUsed;
+
+    /**
+     * Final figures of a run.
+     */
+    public static final class Report {
+        public long produced;
+        public long delivered;
+        public long dropped;
+        public long failed;
+        public long lagP99Millis;
+        public long lagMaxMillis;
+        public long maxHeapUsed;
+
+        @Override
+        public String toString() {
+            return String.format("produced=%d delivered=%d dropped=%d failed=%d lagP99=%dms lagMax=%dms maxHeap=%dMB",
+                    produced, delivered, dropped, failed, lagP99Millis, lagMaxMillis, maxHeapUsed >> 20);
+        }
+    }
+
+    //Appender attributes override defaults: asynchronous appender, background bulk requests
+    public LoadDriver(FakeElasticsearch elasticsearch, Map<String, String> appenderAttributes, int eventsPerSecond, int threads) {
+        this.elasticsearch = elasticsearch;
+        this.appenderAttributes.put("async", "true");
+        this.appenderAttributes.put("batchMode", "always");
+        this.appenderAttributes.put("lingerMs", "200");
+        this.appenderAttributes.put("maxInFlightBulks", "4");
+        this.appenderAttributes.putAll(appenderAttributes);
+        this.eventsPerSecond = eventsPerSecond;
+        this.threads = threads;
+    }
+
+    public Report run(long durationSeconds, long reportIntervalSeconds, PrintStream out) throws InterruptedException {
+        LoggerContext context = new LoggerContext("load-driver");
+        context.start(configuration());
+        ElasticAppender appender = context.getConfiguration().getAppender(APPENDER_NAME);
+        AppenderMetrics metrics = appender.getMetrics();
+
+        running = true;
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(() -> produce(context.getLogger("load-driver")), "load-producer-" + i);
+            producer.start();
+            producers.add(producer);
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < end) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportIntervalSeconds), TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+            out.println(String.format("%4ds %s", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), report(metrics)));
+        }
+
+        running = false;
+        for (Thread producer : producers)
+            producer.join();
+        //Pending documents are sent while the appender stops
+        context.stop();
+        Report report = report(metrics);
+        out.println("final " + report);
+        return report;
+    }
+
+    private Report report(AppenderMetrics metrics) {
+        maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed());
+        Report report = new Report();
+        report.produced = produced.sum();
+        report.delivered = elasticsearch.getDocuments(INDEX);
+        report.dropped = metrics.getEventsDropped();
+        report.failed = metrics.getEventsFailed();
+        report.lagP99Millis = elasticsearch.getLagMillis().getValueAtPercentile(99);
+        report.lagMaxMillis = elasticsearch.getLagMillis().getMax();
+        report.maxHeapUsed = maxHeapUsed;
+        return report;
+    }
+
+    //Every producer logs at its share of the total rate: MDC and a parameter in every event
+    private void produce(Logger logger) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / Math.max(1, eventsPerSecond);
+        long next = System.nanoTime();
+        ThreadContext.put("producer", Thread.currentThread().getName());
+        for (long i = 0; running; i++) {
+            logger.info("Load event n. {}", i);
+            produced.increment();
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+        }
+        ThreadContext.clearAll();
+    }
+
+    private BuiltConfiguration configuration() {
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setConfigurationName("load-driver");
+        builder.setStatusLevel(Level.WARN);
+        AppenderComponentBuilder appender = builder.newAppender(APPENDER_NAME, "Elastic")
+                .addAttribute("cluster", elasticsearch.getUrl())
+                .addAttribute("index", INDEX);
+        appenderAttributes.forEach(appender::addAttribute);
+        appender.add(builder.newLayout("PatternLayout").addAttribute("pattern", "%m"));
+        builder.add(appender);
+        builder.add(builder.newRootLogger(Level.INFO).add(builder.newAppenderRef(APPENDER_NAME)));
+        return builder.build(false);
+    }
+
+    //Soak run from the command line: LoadDriver <events per second> <seconds> <threads> [<appender attribute>=<value>...]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            String[] attribute = args[i].split("=", 2);
+            attributes.put(attribute[0], attribute[1]);
+        }
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()) {
+            elasticsearch.setLatencyMs(Long.getLong("fake.latencyMs", 0))
+                    .setBulkRejectRate(Double.parseDouble(System.getProperty("fake.bulkRejectRate", "0")))
+                    .setItemRejectRate(Double.parseDouble(System.getProperty("fake.itemRejectRate", "0")))
+                    .setItemFailureRate(Double.parseDouble(System.getProperty("fake.itemFailureRate", "0")))
+                    .setConnectionResetRate(Double.parseDouble(System.getProperty("fake.connectionResetRate", "0")));
+            new LoadDriver(elasticsearch, attributes, Integer.parseInt(args[0]), Integer.parseInt(args[2]))
+                    .run(Long.parseLong(args[1]), 10, System.out);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.ivanocortesini.log4j.elastic.fake;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Short load run with injected faults. Longer soak runs:
+ * mvn test -Dtest=LoadDriverTest -Dload.durationSeconds=3600 -Dload.eventsPerSecond=20000 -Dload.threads=8
+ */
+class LoadDriverTest {
+
+    @Test
+    void load() throws Exception {
+        long durationSeconds = Long.getLong("load.durationSeconds", 2);
+        int eventsPerSecond = Integer.getInteger("load.eventsPerSecond", 5000);
+        int threads = Integer.getInteger("load.threads", 4);
+
+        try (FakeElasticsearch elasticsearch = new FakeElasticsearch()
+                .setLatencyMs(Long.getLong("load.latencyMs", 2))
+                .setItemRejectRate(0.01)
+                .setConnectionResetRate(0.01)) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("maxRetries", "10");
+            attributes.put("retryBackoffMs", "10");
+            LoadDriver.Report report = new LoadDriver(elasticsearch, attributes, eventsPerSecond, threads)
+                    .run(durationSeconds, Math.max(1, durationSeconds / 10), System.out);
+
+            assertThat(report.produced).isPositive();
+            assertThat(report.delivered + report.dropped + report.failed).isEqualTo(report.produced);
+            assertThat(report.failed).isZero();
+        }
+    }
+}
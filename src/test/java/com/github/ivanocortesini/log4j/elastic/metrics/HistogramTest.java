@@ -0,0 +1,58 @@
+package com.github.ivanocortesini.log4j.elastic.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void bucketing() {
+        for (long value : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            assertThat(Histogram.highestEquivalentValue(bucket)).isGreaterThanOrEqualTo(value);
+            if (bucket > 0)
+                assertThat(Histogram.highestEquivalentValue(bucket - 1)).isLessThan(value);
+        }
+    }
+
+    @Test
+    void percentiles() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value * 1000);
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMean()).isEqualTo(500_500.0);
+        assertThat(histogram.getMax()).isEqualTo(1_000_000);
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(500_000L, 562_500L);
+        assertThat(histogram.getValueAtPercentile(99)).isBetween(990_000L, 1_000_000L);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(1_000_000);
+
+        histogram.reset();
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+    }
+
+    @Test
+    void mbeanRegistration() throws Exception {
+        AppenderMetrics metrics = new AppenderMetrics("histogram-test");
+        metrics.setBufferGauges(() -> 3, () -> 300);
+        metrics.eventAccepted();
+        metrics.bulkSent(10, 1000, 2_000_000);
+        metrics.bulkSent(20, 2000, 4_000_000);
+
+        MetricsRegistry.register(metrics, true);
+        try {
+            Object documentsPerBulk = ManagementFactory.getPlatformMBeanServer().getAttribute(MetricsRegistry.objectName(metrics), "DocumentsPerBulk");
+            assertThat(documentsPerBulk).isEqualTo(15.0);
+            assertThat(metrics.getBufferDepth()).isEqualTo(3);
+            assertThat(metrics.getBulkLatencyMaxMicros()).isEqualTo(4000.0);
+        } finally {
+            MetricsRegistry.unregister(metrics);
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(MetricsRegistry.objectName(metrics))).isFalse();
+    }
+}
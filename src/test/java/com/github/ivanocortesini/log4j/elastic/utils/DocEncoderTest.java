@@ -0,0 +1,272 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.ivanocortesini.log4j.elastic.appender.Logged;
+import com.github.ivanocortesini.log4j.elastic.appender.dto.DataExample;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+class DocEncoderTest {
+    static ObjectMapper mapper = new ObjectMapper();
+    static ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    @Test
+    void encode() throws IOException {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("property_1", "value_1");
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.ERROR)
+                .setTimeMillis(1549880417793L)
+                .setThreadName("main")
+                .setContextData(contextData)
+                .setMessage(new ParameterizedMessage("Message n. {}", 1, new DataExample("title", "address", new Date(), Arrays.asList("0039061111111"))))
+                .setThrown(new IllegalArgumentException("Wrong"))
+                .setSource(new StackTraceElement("example.Class", "method", "Class.java", 10))
+                .build();
+
+        DocEncoder encoder = DocEncoder.get().encode(event, true, false);
+        Map<String, Object> document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+
+        assertThat(document.get("message")).isEqualTo("Message n. 1");
+        assertThat(document.get("level")).isEqualTo("ERROR");
+        assertThat(document.get("logger")).isEqualTo("example-logger");
+        assertThat(document.get("timestamp")).isEqualTo("2019-02-11T10:20:17.793Z");
+        assertThat(document.get("thread")).isEqualTo("main");
+        assertThat(document.get("property_1")).isEqualTo("value_1");
+        assertThat(document.get("class")).isEqualTo("example.Class");
+        assertThat(document.get("line")).isEqualTo(10);
+        assertThat(document.get("errorMessage")).isEqualTo("Wrong");
+        assertThat(document.get("errorType")).isEqualTo(IllegalArgumentException.class.getName());
+        assertThat(document.get("stack")).isNotNull();
+        assertThat(((Map<String, Object>) document.get("data-example")).get("title")).isEqualTo("title");
+    }
+
+    @Test
+    void encodeWithSchema() throws IOException {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("property_1", "value_1");
+        contextData.putValue("property_2", "value_2");
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.WARN)
+                .setThreadName("main")
+                .setContextData(contextData)
+                .setMessage(new ParameterizedMessage("Message n. {}", 1))
+                .setThrown(new IllegalArgumentException("Wrong"))
+                .build();
+        DocSchema schema = DocSchema.compile(null, "thread, errorFingerprint", "level=log.level, logger=log.logger",
+                Arrays.asList(new KeyValuePair("service", "orders"), new KeyValuePair("env", "prod")), "property_2",
+                PatternLayout.newBuilder().withPattern("[%p] %m%n").withAlwaysWriteExceptions(false).build());
+
+        DocEncoder encoder = DocEncoder.get().encode(event, schema, new StackTraceCache(0), false, false);
+        Map<String, Object> document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+
+        assertThat(document).containsOnlyKeys("property_2", "message", "log.level", "log.logger", "timestamp", "errorMessage", "errorType", "service", "env");
+        assertThat(document.get("message")).isEqualTo("[WARN] Message n. 1");
+        assertThat(document.get("log.level")).isEqualTo("WARN");
+        assertThat(document.get("service")).isEqualTo("orders");
+
+        //Static fields only
+        schema = DocSchema.compile("level", "level", null, Arrays.asList(new KeyValuePair("service", "orders")), "none", null);
+        encoder = DocEncoder.get().encode(event, schema, new StackTraceCache(0), false, false);
+        assertThat(mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class)).containsOnlyKeys("service");
+    }
+
+    @Test
+    void encodeSmile() throws IOException {
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.ERROR)
+                .setTimeMillis(1549880417793L)
+                .setThreadName("main")
+                .setMessage(new ParameterizedMessage("Message n. {}", 1, new DataExample("title", "address", new Date(), Arrays.asList("0039061111111"))))
+                .setThrown(failure("Wrong"))
+                .setSource(new StackTraceElement("example.Class", "method", "Class.java", 10))
+                .build();
+        DocSchema schema = DocSchema.compile(null, null, null, Arrays.asList(new KeyValuePair("service", "orders")), null, null);
+
+        DocEncoder json = DocEncoder.get(DocumentFormat.JSON).encode(event, schema, new StackTraceCache(10), true, false);
+        Map<String, Object> jsonDocument = mapper.readValue(json.getBuffer(), 0, json.getLength(), Map.class);
+        //Smile documents are independent streams: the encoder is reused, stacks are copied from cache the second time
+        StackTraceCache smileStackTraceCache = new StackTraceCache(10);
+        for (int i = 0; i < 2; i++) {
+            DocEncoder smile = DocEncoder.get(DocumentFormat.SMILE).encode(event, schema, smileStackTraceCache, true, false);
+            assertThat(DocumentFormat.detect(smile.getBuffer(), 0, smile.getLength())).isEqualTo(DocumentFormat.SMILE);
+            assertThat(smile.getLength()).isLessThan(json.getLength());
+            assertThat(smileMapper.readValue(smile.getBuffer(), 0, smile.getLength(), Map.class)).isEqualTo(jsonDocument);
+        }
+    }
+
+    @Test
+    void encodeRepeatedErrors() throws IOException {
+        StackTraceCache stackTraceCache = new StackTraceCache(10);
+        List<Map<String, Object>> documents = new ArrayList<>();
+        for (String message : Arrays.asList("first", "second"))
+            documents.add(encodeError(stackTraceCache, failure(message)));
+        Map<String, Object> first = documents.get(0);
+        Map<String, Object> second = documents.get(1);
+
+        assertThat(stackTraceCache.size()).isEqualTo(1);
+        assertThat(first.get("errorFingerprint")).isEqualTo(second.get("errorFingerprint"));
+        assertThat(first.get("stack")).isEqualTo(second.get("stack"));
+        assertThat(second.get("errorMessage")).isEqualTo("second");
+
+        List<Map<String, Object>> causes = (List<Map<String, Object>>) second.get("causes");
+        assertThat(causes).hasSize(1);
+        assertThat(causes.get(0).get("errorType")).isEqualTo(IllegalStateException.class.getName());
+        assertThat(causes.get(0).get("errorMessage")).isEqualTo("cause of second");
+        assertThat(causes.get(0).get("stack")).isNotNull();
+
+        Map<String, Object> other = encodeError(stackTraceCache, new IllegalArgumentException("other"));
+        assertThat(other.get("errorFingerprint")).isNotEqualTo(first.get("errorFingerprint"));
+        assertThat(other).doesNotContainKey("causes");
+        assertThat(stackTraceCache.size()).isEqualTo(2);
+    }
+
+    private Map<String, Object> encodeError(StackTraceCache stackTraceCache, Throwable error) throws IOException {
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.ERROR)
+                .setMessage(new ParameterizedMessage("Error"))
+                .setThrown(error)
+                .build();
+        DocEncoder encoder = DocEncoder.get().encode(event, stackTraceCache, true, false);
+        return mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+    }
+
+    private static Throwable failure(String message) {
+        return new IllegalArgumentException(message, new IllegalStateException("cause of " + message));
+    }
+
+    @Test
+    void encodeWithFailingLoggedParameter() throws IOException {
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.INFO)
+                .setMessage(new ParameterizedMessage("Message with {}", new FailingData()))
+                .build();
+
+        DocEncoder encoder = DocEncoder.get().encode(event, false, true);
+        Map<String, Object> document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+
+        assertThat(document.get("message")).isEqualTo("Message with failing");
+        assertThat(document).doesNotContainKey("failing-data");
+    }
+
+    @Test
+    void encodeTruncated() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            text.append('\u00e9');
+        List<String> phones = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            phones.add("00390611111" + i);
+        IllegalStateException error = new IllegalStateException("Deep");
+        StackTraceElement[] stack = new StackTraceElement[300];
+        for (int i = 0; i < stack.length; i++)
+            stack[i] = new StackTraceElement("example.Class", "method" + i, "Class.java", i);
+        error.setStackTrace(stack);
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("property_1", "value_1");
+        Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.ERROR)
+                .setContextData(contextData)
+                .setMessage(new ParameterizedMessage("{} {}", text, new DataExample("title", "address", new Date(), phones)))
+                .setThrown(error);
+        DocSchema schema = DocSchema.compile(null, null, null, null, null, null, 1001, 1024, 10, 0);
+
+        //Message cut at 1000 bytes (2 bytes chars), oversized @Logged field left out, 10 stack frames
+        DocEncoder encoder = DocEncoder.get().encode(builder.build(), schema, new StackTraceCache(0), true, false);
+        Map<String, Object> document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+        assertThat((String) document.get("message")).hasSize(500);
+        assertThat(document).doesNotContainKey("data-example");
+        assertThat((List<?>) document.get("stack")).hasSize(10);
+        assertThat(document.get("property_1")).isEqualTo("value_1");
+        assertThat(document.get("truncated")).isEqualTo(true);
+
+        //No limits by default
+        encoder = DocEncoder.get().encode(builder.build(), DocSchema.DEFAULT, new StackTraceCache(0), true, false);
+        document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+        assertThat((String) document.get("message")).startsWith(text + " DataExample");
+        assertThat((List<?>) document.get("stack")).hasSize(300);
+        assertThat(document).containsKey("data-example").doesNotContainKey("truncated");
+
+        //Truncation marker written with an explicit fields list
+        schema = DocSchema.compile("message", null, null, null, null, null, 1001, 0, 0, 0);
+        encoder = DocEncoder.get().encode(builder.build(), schema, new StackTraceCache(0), true, false);
+        document = mapper.readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+        assertThat(document.get("truncated")).isEqualTo(true);
+
+        //Oversized document: standard fields only, texts cut to a quarter of the limit
+        contextData.putValue("property_2", text.toString());
+        schema = DocSchema.compile(null, null, null, null, null, null, 0, 0, 0, 4096);
+        for (DocumentFormat format : DocumentFormat.values()) {
+            encoder = DocEncoder.get(format).encode(builder.setContextData(contextData).build(), schema, new StackTraceCache(0), true, false);
+            assertThat(encoder.getLength()).isLessThanOrEqualTo(4096);
+            document = (format == DocumentFormat.JSON ? mapper : smileMapper).readValue(encoder.getBuffer(), 0, encoder.getLength(), Map.class);
+            assertThat((String) document.get("message")).hasSize(512);
+            assertThat(document).doesNotContainKeys("property_1", "property_2", "data-example", "stack");
+            assertThat(document.get("errorMessage")).isEqualTo("Deep");
+            assertThat(document.get("truncated")).isEqualTo(true);
+        }
+    }
+
+    @Test
+    void encodeWithoutAllocation() throws IOException {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("property_1", "value_1");
+        contextData.putValue("property_2", "value_2");
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(Level.INFO)
+                .setTimeMillis(System.currentTimeMillis())
+                .setThreadName("main")
+                .setContextData(contextData)
+                .setMessage(new ParameterizedMessage("Message n. {} of {}", "first", "second"))
+                .build();
+
+        DocEncoder encoder = DocEncoder.get();
+        for (int i = 0; i < 20000; i++)
+            encoder.encode(event, false, true);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++)
+            encoder.encode(event, false, true);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        //Some bytes are allocated by the measurement itself
+        assertThat(allocated / 10000).isLessThan(8);
+    }
+
+    @Logged("failing-data")
+    static class FailingData {
+        public String getValue() {
+            throw new IllegalStateException("Not serializable");
+        }
+        public String toString() {
+            return "failing";
+        }
+    }
+}
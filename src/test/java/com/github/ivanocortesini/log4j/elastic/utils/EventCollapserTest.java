@@ -0,0 +1,64 @@
+package com.github.ivanocortesini.log4j.elastic.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.ivanocortesini.log4j.elastic.config.DocumentFormat;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+class EventCollapserTest {
+    static ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void collapseBurst() throws IOException {
+        List<Map<String, Object>> summaries = new ArrayList<>();
+        EventCollapser collapser = new EventCollapser("collapse-test", 60000, 1024, DocSchema.DEFAULT, DocumentFormat.JSON, new StackTraceCache(16), false,
+                (source, length, event) -> summaries.add(mapper.readValue(source, 0, length, Map.class)));
+
+        long start = 1549880417000L;
+        Throwable error = new IllegalStateException("Connection refused");
+        assertThat(collapser.collapse(event(Level.ERROR, start, 0, error))).isFalse();
+        for (int i = 1; i <= 100; i++)
+            assertThat(collapser.collapse(event(Level.ERROR, start + i, i, error))).isTrue();
+        //Other level, other error: other keys
+        assertThat(collapser.collapse(event(Level.WARN, start + 101, 101, error))).isFalse();
+        assertThat(collapser.collapse(event(Level.ERROR, start + 102, 102, new IllegalArgumentException()))).isFalse();
+        assertThat(summaries).isEmpty();
+
+        //Window expired: the summary is stored and a new window starts
+        assertThat(collapser.collapse(event(Level.ERROR, start + 60000, 103, error))).isFalse();
+        assertThat(summaries).hasSize(1);
+        Map<String, Object> summary = summaries.get(0);
+        assertThat(summary.get("count")).isEqualTo(100);
+        assertThat(summary.get("message")).isEqualTo("Call n. 1 failed");
+        assertThat(summary.get("firstTimestamp")).isEqualTo("2019-02-11T10:20:17.001Z");
+        assertThat(summary.get("lastTimestamp")).isEqualTo("2019-02-11T10:20:17.100Z");
+        assertThat(summary.get("errorType")).isEqualTo(IllegalStateException.class.getName());
+        assertThat((List<List<String>>) summary.get("sampleParameters")).hasSize(EventCollapser.MAX_SAMPLES).first().isEqualTo(Collections.singletonList("1"));
+
+        assertThat(collapser.collapse(event(Level.ERROR, start + 60001, 104, error))).isTrue();
+        collapser.stop();
+        assertThat(summaries).hasSize(2);
+        assertThat(summaries.get(1).get("count")).isEqualTo(1);
+    }
+
+    private static LogEvent event(Level level, long timeMillis, int call, Throwable error) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("example-logger")
+                .setLevel(level)
+                .setTimeMillis(timeMillis)
+                .setMessage(new ParameterizedMessage("Call n. {} failed", call))
+                .setThrown(error)
+                .build();
+    }
+}